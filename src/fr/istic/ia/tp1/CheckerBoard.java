@@ -4,6 +4,7 @@
 package fr.istic.ia.tp1;
 
 import java.util.ArrayList;
+import java.util.SplittableRandom;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -14,7 +15,27 @@ import java.util.function.Predicate;
  */
 public class CheckerBoard {
 	final byte size;
-	private byte[] state;
+	
+	/** The precomputed masks shared by all the boards of this size */
+	final Geometry geometry;
+	
+	/**
+	 * Bitboards of the white pieces, the black pieces and the kings (of both colors) for tiles 1 to 64.
+	 * Bit <code>k</code> stands for the tile number <code>k+1</code>.
+	 */
+	private long whites, blacks, kings;
+	
+	/**
+	 * Bitboards for tiles 65 and above (only used on the 12x12 board).
+	 * Bit <code>k</code> stands for the tile number <code>k+65</code>.
+	 */
+	private long whitesHigh, blacksHigh, kingsHigh;
+	
+	/** Number of checkers (not crowned) and kings of each color, kept up to date by {@link #set(int, byte)} */
+	private int nbWhiteCheckers, nbWhiteKings, nbBlackCheckers, nbBlackKings;
+	
+	/** Zobrist hash of the pieces on the board, kept up to date by {@link #set(int, byte)} */
+	private long zobristKey;
 	
 	/** An ID indicating a point was not on the checker board. */
 	public static final byte INVALID = -1;
@@ -49,8 +70,8 @@ public class CheckerBoard {
 		assert size >= 3 && size <= 12 : "Cannot create board with size <3 or >12";
 		assert size % 2 == 0 : "Cannot create a board with odd size";
 		this.size = (byte)size;
+		this.geometry = Geometry.ofSize(size);
 		int nbPlaces = (size * size) / 2;
-		this.state = new byte[nbPlaces];
 		int nbPawnsPerPlayer = (size/2 - 1) * (size/2);
 		for (int k = 0; k<nbPawnsPerPlayer; ++k) {
 			set(nbPlaces - k, WHITE_CHECKER);
@@ -64,7 +85,18 @@ public class CheckerBoard {
 	 */
 	protected CheckerBoard(CheckerBoard board) {
 		this.size = board.size;
-		this.state = board.state.clone();
+		this.geometry = board.geometry;
+		this.whites = board.whites;
+		this.blacks = board.blacks;
+		this.kings = board.kings;
+		this.whitesHigh = board.whitesHigh;
+		this.blacksHigh = board.blacksHigh;
+		this.kingsHigh = board.kingsHigh;
+		this.nbWhiteCheckers = board.nbWhiteCheckers;
+		this.nbWhiteKings = board.nbWhiteKings;
+		this.nbBlackCheckers = board.nbBlackCheckers;
+		this.nbBlackKings = board.nbBlackKings;
+		this.zobristKey = board.zobristKey;
 	}
 	
 	@Override
@@ -77,7 +109,7 @@ public class CheckerBoard {
 	 * @return The number of black tiles
 	 */
 	public int nbPlayableTiles() {
-		return state.length;
+		return geometry.nbPlaces;
 	}
 	
 	
@@ -86,10 +118,7 @@ public class CheckerBoard {
 	 * @return
 	 */
 	public boolean isEmpty() {
-		for (int i=1; i<=nbPlayableTiles(); ++i)
-			if (get(i) != EMPTY)
-				return false;
-		return true;
+		return (whites | blacks | whitesHigh | blacksHigh) == 0;
 	}
 	
 	
@@ -115,6 +144,43 @@ public class CheckerBoard {
 		}
 	}
 	
+	/**
+	 * Get the Zobrist hash of the pieces on the board, updated incrementally at each change of a tile
+	 * @return 64-bit hash of the board contents
+	 */
+	public long zobristKey() {
+		return zobristKey;
+	}
+	
+	/**
+	 * Compute the Zobrist hash of the board from scratch (for verification purposes)
+	 * @return The value {@link #zobristKey()} should have
+	 */
+	public long computeZobristKey() {
+		long key = 0;
+		for (int square = 1; square <= nbPlayableTiles(); ++square) {
+			key ^= geometry.zobristKey(square, get(square));
+		}
+		return key;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(zobristKey);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CheckerBoard))
+			return false;
+		CheckerBoard other = (CheckerBoard) obj;
+		return size == other.size && zobristKey == other.zobristKey
+				&& whites == other.whites && blacks == other.blacks && kings == other.kings
+				&& whitesHigh == other.whitesHigh && blacksHigh == other.blacksHigh && kingsHigh == other.kingsHigh;
+	}
+	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer("W");
@@ -206,7 +272,26 @@ public class CheckerBoard {
 	 * @param value ID of the pawn type (e.g {@link CheckerBoard#BLACK_CHECKER}, {@link CheckerBoard#BLACK_KING}... or {@link CheckerBoard#EMPTY})
 	 */
 	 void set(int square, byte value) {
-		state[square-1] = value;
+		assert square >= 1 && square <= nbPlayableTiles() : "Invalid tile number " + square;
+		byte previous = get(square);
+		updateCount(previous, -1);
+		updateCount(value, +1);
+		zobristKey ^= geometry.zobristKey(square, previous) ^ geometry.zobristKey(square, value);
+		boolean white = value == WHITE_CHECKER || value == WHITE_KING;
+		boolean black = value == BLACK_CHECKER || value == BLACK_KING;
+		boolean king = value == WHITE_KING || value == BLACK_KING;
+		int bit = square - 1;
+		if (bit < 64) {
+			long mask = 1L << bit;
+			whites = white ? whites | mask : whites & ~mask;
+			blacks = black ? blacks | mask : blacks & ~mask;
+			kings = king ? kings | mask : kings & ~mask;
+		} else {
+			long mask = 1L << (bit - 64);
+			whitesHigh = white ? whitesHigh | mask : whitesHigh & ~mask;
+			blacksHigh = black ? blacksHigh | mask : blacksHigh & ~mask;
+			kingsHigh = king ? kingsHigh | mask : kingsHigh & ~mask;
+		}
 	}
 	
 	/**
@@ -215,7 +300,48 @@ public class CheckerBoard {
 	 * @return ID of the present pawn type (or {@link CheckerBoard#EMPTY})
 	 */
 	public byte get(int square) {
-		return state[square-1];
+		assert square >= 1 && square <= nbPlayableTiles() : "Invalid tile number " + square;
+		int bit = square - 1;
+		long w, b, k;
+		if (bit < 64) {
+			w = whites; b = blacks; k = kings;
+		} else {
+			w = whitesHigh; b = blacksHigh; k = kingsHigh;
+			bit -= 64;
+		}
+		boolean king = ((k >>> bit) & 1L) != 0;
+		if (((w >>> bit) & 1L) != 0)
+			return king ? WHITE_KING : WHITE_CHECKER;
+		if (((b >>> bit) & 1L) != 0)
+			return king ? BLACK_KING : BLACK_CHECKER;
+		return EMPTY;
+	}
+	
+	/**
+	 * Update the material counts when a pawn appears or disappears
+	 * @param value ID of the pawn type
+	 * @param delta +1 when the pawn is added, -1 when it is removed
+	 */
+	private void updateCount(byte value, int delta) {
+		switch (value) {
+		case WHITE_CHECKER:	nbWhiteCheckers += delta; break;
+		case WHITE_KING:	nbWhiteKings += delta; break;
+		case BLACK_CHECKER:	nbBlackCheckers += delta; break;
+		case BLACK_KING:	nbBlackKings += delta; break;
+		default:			break;
+		}
+	}
+	
+	/**
+	 * Test the bit of a given square in a bitboard pair
+	 * @param low Bitboard of tiles 1 to 64
+	 * @param high Bitboard of tiles 65 and above
+	 * @param square Tile number
+	 * @return <code>true</code> if the bit of the tile is set
+	 */
+	private static boolean testBit(long low, long high, int square) {
+		int bit = square - 1;
+		return bit < 64 ? ((low >>> bit) & 1L) != 0 : ((high >>> (bit - 64)) & 1L) != 0;
 	}
 	
 	/**
@@ -268,63 +394,47 @@ public class CheckerBoard {
 	/**
 	 * Get the tile-number of the top-left neighbor (i.e towards the blacks side) of a given tile
 	 * @param square Number of the given tile
-	 * @return Top-left neighbor of the given square number, 0 if no neighbor
+	 * @return Top-left neighbor of the given square number, 0 if no neighbor (or if square is 0)
 	 */
 	public int neighborUpLeft(int square) {
-		if (!inTopRow(square) && !inLeftRow(square))
-			return square - (size / 2) - (lineOfSquare(square)+1) % 2;
-		else
-			return 0;
+		return geometry.neighbor[Geometry.UP_LEFT][square];
 	}
 	
 	/**
 	 * Get the tile-number of the bottom-left neighbor (i.e towards the whites side) of a given tile
 	 * @param square Number of the given tile
-	 * @return Bottom-left neighbor of the given square number, 0 if no neighbor
+	 * @return Bottom-left neighbor of the given square number, 0 if no neighbor (or if square is 0)
 	 */
 	public int neighborDownLeft(int square) {
-		if (!inBottomRow(square) && !inLeftRow(square))
-			return square + (size / 2) - (lineOfSquare(square)+1) % 2;
-		else
-			return 0;
+		return geometry.neighbor[Geometry.DOWN_LEFT][square];
 	}
 	
 	/**
 	 * Get the tile-number of the top-right neighbor (i.e towards the blacks side) of a given tile
 	 * @param square Number of the given tile
-	 * @return Top-right neighbor of the given square number, 0 if no neighbor
+	 * @return Top-right neighbor of the given square number, 0 if no neighbor (or if square is 0)
 	 */
 	public int neighborUpRight(int square) {
-		if (!inTopRow(square) && !inRightRow(square))
-			return square - (size / 2) - (lineOfSquare(square)+1) % 2 + 1;
-		else
-			return 0;
+		return geometry.neighbor[Geometry.UP_RIGHT][square];
 	}
 	
 	/**
 	 * Get the tile-number of the bottom-right neighbor (i.e towards the whites) of a given tile
 	 * @param square Number of the given tile
-	 * @return Bottom-right neighbor of the given square number, 0 if no neighbor
+	 * @return Bottom-right neighbor of the given square number, 0 if no neighbor (or if square is 0)
 	 */
 	public int neighborDownRight(int square) {
-		if (!inBottomRow(square) && !inRightRow(square))
-			return square + (size / 2) - (lineOfSquare(square)+1) % 2 + 1;
-		else
-			return 0;
+		return geometry.neighbor[Geometry.DOWN_RIGHT][square];
 	}
 	
 	/**
 	 * The number of the square between the two squares <code>square1</code> and <code>square2</code>.
-	 * Only valid if <code>square1</code> and <code>square2</code> are in the same diagonal.
 	 * @param square1
 	 * @param square2
-	 * @return
+	 * @return The jumped tile number, 0 if <code>square2</code> is not a jump away from <code>square1</code>
 	 */
 	public int squareBetween(int square1, int square2) {
-		if ((square1 - square2 < size/2 + 2) && (square2 - square1 < size/2 + 2))
-			return 0;
-		else
-			return (square1 + square2) / 2 + 1 - (lineOfSquare(square1)+1) % 2;
+		return geometry.between[square1 * (geometry.nbPlaces + 1) + square2];
 	}
 	
 	/**
@@ -333,7 +443,7 @@ public class CheckerBoard {
 	 * @return
 	 */
 	public boolean isEmpty(int square) {
-		return get(square) == EMPTY;
+		return !testBit(whites | blacks, whitesHigh | blacksHigh, square);
 	}
 	
 	/**
@@ -342,8 +452,7 @@ public class CheckerBoard {
 	 * @return
 	 */
 	public boolean isBlack(int square) {
-		byte type = get(square);
-		return type == BLACK_CHECKER || type == BLACK_KING;
+		return testBit(blacks, blacksHigh, square);
 	}
 	
 	/**
@@ -352,8 +461,7 @@ public class CheckerBoard {
 	 * @return
 	 */
 	public boolean isWhite(int square) {
-		byte type = get(square);
-		return type == WHITE_CHECKER || type == WHITE_KING;
+		return testBit(whites, whitesHigh, square);
 	}
 	
 	/**
@@ -362,8 +470,7 @@ public class CheckerBoard {
 	 * @return
 	 */
 	public boolean isKing(int square) {
-		byte type = get(square);
-		return type == WHITE_KING || type == BLACK_KING;
+		return testBit(kings, kingsHigh, square);
 	}
 	
 	/**
@@ -372,8 +479,9 @@ public class CheckerBoard {
 	 * @param to Destination tile number
 	 */
 	public void movePawn(int from, int to) {
-		set(to, get(from));
+		byte pawn = get(from);
 		set(from, EMPTY);
+		set(to, pawn);
 	}
 	
 	/**
@@ -396,19 +504,24 @@ public class CheckerBoard {
 			set(square, BLACK_KING);
 	}
 
+	/**
+	 * Turn a king back into a checker (to undo {@link #crownPawn(int)})
+	 * @param square Tile number of the king
+	 */
+	public void uncrownPawn(int square) {
+		byte currentPawn = get(square);
+		if (currentPawn == WHITE_KING)
+			set(square, WHITE_CHECKER);
+		else if (currentPawn == BLACK_KING)
+			set(square, BLACK_CHECKER);
+	}
+
 	/**
 	 * Retrieve the positions of all white pawns in the board
 	 * @return The list of white pawns
 	 */
 	public ArrayList<Integer> getWhitePawns() {
-		ArrayList<Integer> myPawns = new ArrayList<Integer>();
-		myPawns.ensureCapacity((size/2 - 1) * (size/2));
-		for (int pawn = 1; pawn <= nbPlayableTiles(); ++pawn) {
-			if ( isWhite(pawn) ) {
-				myPawns.add( pawn );
-			}
-		}
-		return myPawns;
+		return pawnsList(whites, whitesHigh);
 	}
 	
 	/**
@@ -416,13 +529,478 @@ public class CheckerBoard {
 	 * @return The list of black pawns
 	 */
 	public ArrayList<Integer> getBlackPawns() {
+		return pawnsList(blacks, blacksHigh);
+	}
+	
+	/**
+	 * Get the number of pieces (checkers and kings) of a player
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return The number of pieces
+	 */
+	public int nbPawns(boolean white) {
+		return white ? nbWhiteCheckers + nbWhiteKings : nbBlackCheckers + nbBlackKings;
+	}
+	
+	/**
+	 * Get the number of checkers (pieces that are not kings) of a player
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return The number of checkers
+	 */
+	public int nbCheckers(boolean white) {
+		return white ? nbWhiteCheckers : nbBlackCheckers;
+	}
+	
+	/**
+	 * Get the number of kings of a player
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return The number of kings
+	 */
+	public int nbKings(boolean white) {
+		return white ? nbWhiteKings : nbBlackKings;
+	}
+	
+	/**
+	 * Get the total advancement of the checkers of a player (kings are not counted), for static evaluation:
+	 * the sum, over its checkers, of the number of rows they have moved forward from the back row of the player
+	 * @param white <code>true</code> for the white pieces (moving up), <code>false</code> for the black ones
+	 * @return The number of rows
+	 */
+	public int advancement(boolean white) {
+		long low = (white ? whites : blacks) & ~kings;
+		long high = (white ? whitesHigh : blacksHigh) & ~kingsHigh;
+		long[][] rows = geometry.rowMask;
+		int total = 0;
+		for (int row = 1; row < size - 1; ++row) {
+			int nbInRow = Long.bitCount(low & rows[row][0]);
+			if (rows[row].length > 1)
+				nbInRow += Long.bitCount(high & rows[row][1]);
+			total += nbInRow * (white ? size - 1 - row : row);
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the number of checkers of a player still on its back row, where they keep the opponent from crowning
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return The number of checkers on the back row
+	 */
+	public int backRankGuards(boolean white) {
+		long[] backRow = geometry.rowMask[white ? size - 1 : 0];
+		int guards = Long.bitCount((white ? whites : blacks) & ~kings & backRow[0]);
+		if (backRow.length > 1)
+			guards += Long.bitCount((white ? whitesHigh : blacksHigh) & ~kingsHigh & backRow[1]);
+		return guards;
+	}
+	
+	/**
+	 * Iterate over the pieces of a player without allocation, in increasing tile number order:
+	 * <code>for (int p = board.nextPawn(white, 0); p != 0; p = board.nextPawn(white, p))</code>
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @param square The previous tile number (0 to get the first piece)
+	 * @return The tile number of the next piece after <code>square</code>, 0 if there is none
+	 */
+	public int nextPawn(boolean white, int square) {
+		long high = white ? whitesHigh : blacksHigh;
+		if (square < 64) {
+			long bits = (white ? whites : blacks) & (-1L << square);
+			if (bits != 0)
+				return Long.numberOfTrailingZeros(bits) + 1;
+		} else {
+			high &= -1L << (square - 64);
+		}
+		return high != 0 ? Long.numberOfTrailingZeros(high) + 65 : 0;
+	}
+	
+	/**
+	 * Build the list of the tile numbers set in a bitboard pair, in increasing order
+	 * @param low Bitboard of tiles 1 to 64
+	 * @param high Bitboard of tiles 65 and above
+	 * @return The list of tile numbers
+	 */
+	private ArrayList<Integer> pawnsList(long low, long high) {
 		ArrayList<Integer> myPawns = new ArrayList<Integer>();
 		myPawns.ensureCapacity((size/2 - 1) * (size/2));
-		for (int pawn = 1; pawn <= nbPlayableTiles(); ++pawn) {
-			if ( isBlack(pawn) ) {
-				myPawns.add( pawn );
-			}
+		for (long bits = low; bits != 0; bits &= bits - 1) {
+			myPawns.add( Long.numberOfTrailingZeros(bits) + 1 );
+		}
+		for (long bits = high; bits != 0; bits &= bits - 1) {
+			myPawns.add( Long.numberOfTrailingZeros(bits) + 65 );
 		}
 		return myPawns;
 	}
+	
+	/**
+	 * Get the number of 64-bit words of a bitboard for this board size
+	 * (1 for boards up to 10x10, 2 for the 12x12 board)
+	 * @return The number of words
+	 */
+	public int nbMaskWords() {
+		return geometry.nbWords;
+	}
+	
+	/**
+	 * Compute at once the set of pieces of a player that can make a simple move (without capture).
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @param word Index of the requested word of the bitboard (see {@link #nbMaskWords()})
+	 * @return Bitboard word of the pieces that can move: bit <code>k</code> stands for tile <code>64*word+k+1</code>
+	 */
+	public long movablePieces(boolean white, int word) {
+		long result = 0;
+		for (int dir = 0; dir < 4; ++dir)
+			result |= movablePieces(white, dir, word);
+		return result;
+	}
+	
+	/**
+	 * Compute at once the set of pieces of a player that can make a simple move in a given direction.
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @param dir The direction of the move (see {@link Geometry#UP_LEFT}...)
+	 * @param word Index of the requested word of the bitboard (see {@link #nbMaskWords()})
+	 * @return Bitboard word of the pieces that can move: bit <code>k</code> stands for tile <code>64*word+k+1</code>
+	 */
+	public long movablePieces(boolean white, int dir, int word) {
+		Geometry g = geometry;
+		long result = 0;
+		if (g.nbWords == 1) {
+			// Fast path: the whole board fits in a single long
+			long own = white ? whites : blacks;
+			long movers = Geometry.isForward(dir, white) ? own : own & kings;
+			if (movers == 0)
+				return 0;
+			long empty = ~(whites | blacks) & g.playable[0];
+			for (int parity = 0; parity < 2; ++parity) {
+				int delta = g.stepDelta[dir][parity];
+				if (delta != 0)
+					result |= movers & g.stepMask[dir][parity][0] & shiftBack(empty, delta);
+			}
+			return result;
+		}
+		long own = word == 0 ? (white ? whites : blacks) : (white ? whitesHigh : blacksHigh);
+		long movers = Geometry.isForward(dir, white) ? own : own & (word == 0 ? kings : kingsHigh);
+		if (movers == 0)
+			return 0;
+		long emptyLow = ~(whites | blacks) & g.playable[0];
+		long emptyHigh = ~(whitesHigh | blacksHigh) & g.playable[1];
+		for (int parity = 0; parity < 2; ++parity) {
+			int delta = g.stepDelta[dir][parity];
+			if (delta != 0)
+				result |= movers & g.stepMask[dir][parity][word] & shiftBack(emptyLow, emptyHigh, delta, word);
+		}
+		return result;
+	}
+	
+	/**
+	 * Compute at once the set of pieces of a player that can capture an adversary piece.
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @param word Index of the requested word of the bitboard (see {@link #nbMaskWords()})
+	 * @return Bitboard word of the pieces that can jump: bit <code>k</code> stands for tile <code>64*word+k+1</code>
+	 */
+	public long capturingPieces(boolean white, int word) {
+		long result = 0;
+		for (int dir = 0; dir < 4; ++dir)
+			result |= capturingPieces(white, dir, word);
+		return result;
+	}
+	
+	/**
+	 * Compute at once the set of pieces of a player that can capture an adversary piece in a given direction.
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @param dir The direction of the jump (see {@link Geometry#UP_LEFT}...)
+	 * @param word Index of the requested word of the bitboard (see {@link #nbMaskWords()})
+	 * @return Bitboard word of the pieces that can jump: bit <code>k</code> stands for tile <code>64*word+k+1</code>
+	 */
+	public long capturingPieces(boolean white, int dir, int word) {
+		Geometry g = geometry;
+		long adversaryNext = 0;
+		if (g.nbWords == 1) {
+			// Fast path: the whole board fits in a single long
+			long own = white ? whites : blacks;
+			long movers = Geometry.isForward(dir, white) ? own : own & kings;
+			long empty = ~(whites | blacks) & g.playable[0];
+			movers &= g.jumpMask[dir][0] & shiftBack(empty, g.jumpDelta[dir]);
+			if (movers == 0)
+				return 0;
+			long adversary = white ? blacks : whites;
+			for (int parity = 0; parity < 2; ++parity) {
+				int delta = g.stepDelta[dir][parity];
+				if (delta != 0)
+					adversaryNext |= g.stepMask[dir][parity][0] & shiftBack(adversary, delta);
+			}
+			return movers & adversaryNext;
+		}
+		long own = word == 0 ? (white ? whites : blacks) : (white ? whitesHigh : blacksHigh);
+		long movers = Geometry.isForward(dir, white) ? own : own & (word == 0 ? kings : kingsHigh);
+		long emptyLow = ~(whites | blacks) & g.playable[0];
+		long emptyHigh = ~(whitesHigh | blacksHigh) & g.playable[1];
+		movers &= g.jumpMask[dir][word] & shiftBack(emptyLow, emptyHigh, g.jumpDelta[dir], word);
+		if (movers == 0)
+			return 0;
+		long adversaryLow = white ? blacks : whites;
+		long adversaryHigh = white ? blacksHigh : whitesHigh;
+		for (int parity = 0; parity < 2; ++parity) {
+			int delta = g.stepDelta[dir][parity];
+			if (delta != 0)
+				adversaryNext |= g.stepMask[dir][parity][word] & shiftBack(adversaryLow, adversaryHigh, delta, word);
+		}
+		return movers & adversaryNext;
+	}
+	
+	/**
+	 * Check if at least one piece of a player can make a simple move (without capture)
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return
+	 */
+	public boolean canMove(boolean white) {
+		for (int word = 0; word < geometry.nbWords; ++word)
+			for (int dir = 0; dir < 4; ++dir)
+				if (movablePieces(white, dir, word) != 0)
+					return true;
+		return false;
+	}
+	
+	/**
+	 * Check if at least one piece of a player can capture an adversary piece
+	 * @param white <code>true</code> for the white pieces, <code>false</code> for the black ones
+	 * @return
+	 */
+	public boolean canCapture(boolean white) {
+		for (int word = 0; word < geometry.nbWords; ++word)
+			for (int dir = 0; dir < 4; ++dir)
+				if (capturingPieces(white, dir, word) != 0)
+					return true;
+		return false;
+	}
+	
+	/**
+	 * Check if a piece on a tile could be captured at once by the adversary: an adversary piece next to it
+	 * can jump over it (forward, or in any direction for a king) to the empty tile on the other side.
+	 * Used to score moves in playouts, with the precomputed neighbor tables.
+	 * @param square Tile number of the piece
+	 * @param white <code>true</code> for a white piece, <code>false</code> for a black one
+	 * @param vacated A tile to consider empty, e.g. the origin of the move bringing the piece to <code>square</code> (0 for none)
+	 * @return <code>true</code> if the piece is threatened
+	 */
+	public boolean isThreatened(int square, boolean white, int vacated) {
+		int[][] neighbor = geometry.neighbor;
+		for (int dir = 0; dir < 4; ++dir) {
+			int attacker = neighbor[dir][square];
+			if (attacker == 0 || attacker == vacated || !(white ? isBlack(attacker) : isWhite(attacker)))
+				continue;
+			// The attacker jumps in the opposite direction
+			int jumpDir = 3 - dir;
+			if (!isKing(attacker) && !Geometry.isForward(jumpDir, !white))
+				continue;
+			int landing = neighbor[jumpDir][square];
+			if (landing != 0 && (landing == vacated || isEmpty(landing)))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Single-word version of {@link #shiftBack(long, long, int, int)}
+	 * @param mask A bitboard
+	 * @param delta Tile number offset
+	 * @return The set of tiles <code>t</code> such that <code>t+delta</code> is in <code>mask</code>
+	 */
+	private static long shiftBack(long mask, int delta) {
+		return delta < 0 ? mask << -delta : mask >>> delta;
+	}
+	
+	/**
+	 * Compute one word of the set of tiles <code>t</code> such that <code>t+delta</code> is in a two-word bitboard.
+	 * @param low Bitboard of tiles 1 to 64
+	 * @param high Bitboard of tiles 65 and above
+	 * @param delta Tile number offset (non-zero, lower than 64 in absolute value)
+	 * @param word Index of the requested word (0 or 1)
+	 * @return The requested word of the shifted bitboard
+	 */
+	private static long shiftBack(long low, long high, int delta, int word) {
+		if (delta < 0) {
+			int k = -delta;
+			return word == 0 ? low << k : (high << k) | (low >>> (64 - k));
+		} else {
+			return word == 0 ? (low >>> delta) | (high << (64 - delta)) : high >>> delta;
+		}
+	}
+	
+	/**
+	 * Lookup tables, masks and tile offsets describing the diagonals of a board of a given size, 
+	 * used by move generation and bitboard operations. 
+	 * There is one instance per board size, built once and shared by all the boards: it must never be modified.
+	 * 
+	 * Moving one step in a given direction adds a different offset to the tile number on even and on odd rows
+	 * (rows are counted from the blacks side), while a jump always adds the same offset.
+	 */
+	static final class Geometry {
+		/** Direction towards the top-left (blacks side) */
+		static final int UP_LEFT = 0;
+		/** Direction towards the top-right (blacks side) */
+		static final int UP_RIGHT = 1;
+		/** Direction towards the bottom-left (whites side) */
+		static final int DOWN_LEFT = 2;
+		/** Direction towards the bottom-right (whites side) */
+		static final int DOWN_RIGHT = 3;
+		
+		/** Geometries of the valid board sizes, indexed by size */
+		private static final Geometry[] BY_SIZE = new Geometry[13];
+		static {
+			for (int size = 4; size <= 12; size += 2)
+				BY_SIZE[size] = new Geometry(size);
+		}
+		
+		/** Size of one side of the board */
+		final int size;
+		
+		/** Number of playable tiles */
+		final int nbPlaces;
+		
+		/** Number of 64-bit words of a bitboard */
+		final int nbWords;
+		
+		/** Bitboard of all the playable tiles */
+		final long[] playable;
+		
+		/** Tile number offset of a one-step move, indexed by [direction][row parity] (0 if no such move) */
+		final int[][] stepDelta;
+		
+		/** Tiles having a neighbor in a direction, indexed by [direction][row parity][word] */
+		final long[][][] stepMask;
+		
+		/** Tile number offset of a jump, indexed by direction */
+		final int[] jumpDelta;
+		
+		/** Tiles from which a jump stays on the board, indexed by [direction][word] */
+		final long[][] jumpMask;
+		
+		/** Neighbor tile, indexed by [direction][tile number] (0 if out of board or for tile 0) */
+		final int[][] neighbor;
+		
+		/** Landing tile of a jump, indexed by [direction][tile number] (0 if out of board or for tile 0) */
+		final int[][] jump;
+		
+		/** Jumped tile, indexed by <code>from * (nbPlaces+1) + to</code> (0 if <code>to</code> is not a jump away) */
+		final int[] between;
+		
+		/** Zobrist random keys, indexed by <code>4 * tile + (pawnID & 3)</code> */
+		final long[] zobrist;
+		
+		/** Tiles of each row, indexed by [row from the blacks side][word] */
+		final long[][] rowMask;
+		
+		/**
+		 * Get the shared geometry of a board size
+		 * @param size The size of one side of the board (4, 6, 8, 10 or 12)
+		 * @return The geometry of the board
+		 */
+		static Geometry ofSize(int size) {
+			return BY_SIZE[size];
+		}
+		
+		/**
+		 * Check if a direction is the forward direction of a checker of a given color
+		 * @param dir The direction
+		 * @param white <code>true</code> for whites (moving up), <code>false</code> for blacks (moving down)
+		 * @return
+		 */
+		static boolean isForward(int dir, boolean white) {
+			return isUp(dir) == white;
+		}
+		
+		/**
+		 * Get the diagonal a direction belongs to: 0 for up-left/down-right, 1 for up-right/down-left
+		 * @param dir The direction
+		 * @return
+		 */
+		static int axis(int dir) {
+			return (dir ^ (dir >> 1)) & 1;
+		}
+		
+		/**
+		 * Check if a direction goes towards the blacks side
+		 * @param dir The direction
+		 * @return
+		 */
+		static boolean isUp(int dir) {
+			return dir == UP_LEFT || dir == UP_RIGHT;
+		}
+		
+		private Geometry(int size) {
+			this.size = size;
+			this.nbPlaces = (size * size) / 2;
+			this.nbWords = (nbPlaces + 63) / 64;
+			this.playable = new long[nbWords];
+			this.stepDelta = new int[4][2];
+			this.stepMask = new long[4][2][nbWords];
+			this.jumpDelta = new int[4];
+			this.jumpMask = new long[4][nbWords];
+			this.neighbor = new int[4][nbPlaces + 1];
+			this.jump = new int[4][nbPlaces + 1];
+			this.between = new int[(nbPlaces + 1) * (nbPlaces + 1)];
+			this.zobrist = new long[4 * (nbPlaces + 1)];
+			this.rowMask = new long[size][nbWords];
+			SplittableRandom random = new SplittableRandom(0x5EED0000L + size);
+			for (int k = 4; k < zobrist.length; ++k)
+				zobrist[k] = random.nextLong();
+			for (int square = 1; square <= nbPlaces; ++square) {
+				setBit(playable, square);
+				setBit(rowMask[rowFromTop(square)], square);
+				int parity = rowFromTop(square) % 2;
+				for (int dir = 0; dir < 4; ++dir) {
+					int next = step(square, dir);
+					if (next == 0)
+						continue;
+					neighbor[dir][square] = next;
+					stepDelta[dir][parity] = next - square;
+					setBit(stepMask[dir][parity], square);
+					int landing = step(next, dir);
+					if (landing != 0) {
+						jump[dir][square] = landing;
+						between[square * (nbPlaces + 1) + landing] = next;
+						jumpDelta[dir] = landing - square;
+						setBit(jumpMask[dir], square);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Get the Zobrist key of a pawn on a tile
+		 * @param square Tile number
+		 * @param pawnID ID of the pawn type
+		 * @return The random key of the pawn on the tile, 0 for an empty tile
+		 */
+		long zobristKey(int square, byte pawnID) {
+			return pawnID == EMPTY ? 0 : zobrist[4 * square + (pawnID & 3)];
+		}
+		
+		/**
+		 * Row of a tile, counted from the blacks side
+		 * @param square Tile number
+		 * @return zero-based row ID (from the blacks side)
+		 */
+		private int rowFromTop(int square) {
+			return (square - 1) / (size / 2);
+		}
+		
+		/**
+		 * Compute the neighbor of a tile in a direction from its coordinates
+		 * @param square Tile number
+		 * @param dir Direction
+		 * @return The neighbor tile number, 0 if out of board
+		 */
+		private int step(int square, int dir) {
+			int y = size - 1 - rowFromTop(square);
+			int x = 2 * ((square - 1) % (size / 2)) + y % 2;
+			x += (dir == UP_RIGHT || dir == DOWN_RIGHT) ? 1 : -1;
+			y += (dir == UP_LEFT || dir == UP_RIGHT) ? 1 : -1;
+			if (x < 0 || y < 0 || x >= size || y >= size)
+				return 0;
+			return (size - y - 1) * (size / 2) + x / 2 + 1;
+		}
+		
+		private static void setBit(long[] mask, int square) {
+			mask[(square - 1) / 64] |= 1L << ((square - 1) % 64);
+		}
+	}
 }
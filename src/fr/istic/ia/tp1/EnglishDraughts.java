@@ -8,6 +8,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.random.RandomGenerator;
 
 import fr.istic.ia.tp1.Game.PlayerId;
 
@@ -40,11 +41,95 @@ public class EnglishDraughts extends Game {
      */
     int nbKingMovesWithoutCapture;
 
+    /**
+     * Zobrist key XORed into the position hash when the blacks are to play
+     */
+    static final long BLACKS_TO_PLAY_KEY = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Weights of the static evaluation ({@link #evaluate()}), in hundredths of a checker
+     */
+    static final int CHECKER_VALUE = 100, KING_VALUE = 160, ADVANCEMENT_VALUE = 3, BACK_RANK_GUARD_VALUE = 12;
+
+    /**
+     * Score difference giving a probability of win of about 73% (1 / (1 + e^-1)) in the static evaluation
+     */
+    static final double EVALUATION_SCALE = 150.0;
+
+    /**
+     * Weight factors of the moves in heuristic playouts ({@link #heuristicRandomMove}): a move is drawn with
+     * a probability proportional to the product of the factors of its properties
+     */
+    static final int SAFE_MOVE_WEIGHT = 4, PROMOTION_WEIGHT = 4, ESCAPE_WEIGHT = 2;
+
+    /**
+     * Layout of a move code (a <code>long</code>):
+     * bits 0-6 hold the origin tile number, bits 7-11 the number of jumps (0 for a simple move),
+     * and the directions of the steps take 2 bits each from bit 12.
+     */
+    static final int MOVE_JUMPS_SHIFT = 7;
+
+    /**
+     * Position of the first step direction in a move code (see {@link #MOVE_JUMPS_SHIFT})
+     */
+    static final int MOVE_DIRECTIONS_SHIFT = 12;
+
+    /**
+     * Maximum number of jumps a move code can hold, enough for the longest capture on the boards up to 12x12.
+     * The playable tiles <code>(x, y)</code> have <code>x</code> and <code>y</code> of the same parity, and a jump
+     * moves by <code>(+-2, +-2)</code>: a capturing piece only lands on tiles <code>(x, y)</code> with the same
+     * <code>(x + y) mod 4</code>. The tiles it jumps from are then on a single diagonal of each jumped piece,
+     * so a capture jumps a piece at most once. The jumped pieces are inside the border, on tiles of the other parity:
+     * there are at most <code>(size/2 - 1)^2</code> of them, 25 on 12x12.
+     * Should a capture be longer anyway, its generation throws an {@link IllegalStateException} instead of
+     * cutting it short.
+     */
+    static final int MAX_JUMPS = 26;
+
+    /**
+     * Scratch buffers for move generation (not shared by copies, allocated when first needed)
+     */
+    private CaptureStack captureStack;
+    private MoveBuffer randomMoves;
+    private int[] moveWeights;
+    private int[] captureCounts;
+
+    /**
+     * Undo stack, two longs per move played: the move code, then a word holding
+     * one bit per jump set if the captured piece was a king (bits 0-25), the crowning flag (bit 26),
+     * and the previous value of {@link #nbKingMovesWithoutCapture} (bits 32-63).
+     * It is not copied by the copy constructor.
+     */
+    private long[] history;
+    private int historySize;
+
+    /**
+     * Crowning flag in an undo record
+     */
+    private static final long UNDO_CROWNED = 1L << MAX_JUMPS;
+
+    /**
+     * Cached codes of the possible moves of the current state, valid if {@link #nbCachedMoves} is not -1.
+     * The array may be shared with copies of the game (see {@link #cacheShared}):
+     * a shared array is never written again, a new one is used instead.
+     */
+    private long[] cachedMoves;
+    private int nbCachedMoves = -1;
+    private boolean cacheShared;
+
+    /**
+     * Cached result of {@link #winner()} for the current state, valid if {@link #winnerKnown}
+     */
+    private PlayerId cachedWinner;
+    private boolean winnerKnown;
+
 
     /**
      * Class representing a move in the English draughts game
      * A move is an ArrayList of Integers, corresponding to the successive tile numbers (Manouri notation)
      * toString is overrided to provide Manouri notation output.
+     * Search code works on primitive move codes instead (see {@link EnglishDraughts#MOVE_JUMPS_SHIFT}),
+     * this class is used to display and enter moves.
      *
      * @author vdrevell
      */
@@ -102,6 +187,15 @@ public class EnglishDraughts extends Game {
         this.playerId = d.playerId;
         this.nbTurn = d.nbTurn;
         this.nbKingMovesWithoutCapture = d.nbKingMovesWithoutCapture;
+        // Share the cached moves and result of the position
+        this.cachedMoves = d.cachedMoves;
+        this.nbCachedMoves = d.nbCachedMoves;
+        this.cachedWinner = d.cachedWinner;
+        this.winnerKnown = d.winnerKnown;
+        if (cachedMoves != null) {
+            this.cacheShared = true;
+            d.cacheShared = true;
+        }
     }
 
     @Override
@@ -109,6 +203,71 @@ public class EnglishDraughts extends Game {
         return new EnglishDraughts(this);
     }
 
+    /**
+     * Get the 64-bit Zobrist hash of the position (pieces, kings and player to move).
+     * The board part is updated incrementally by each move, so this is O(1).
+     * The turn number and the king moves counter are not part of the position.
+     *
+     * @return The hash of the position
+     */
+    public long zobristKey() {
+        return board.zobristKey() ^ (playerId == PlayerId.TWO ? BLACKS_TO_PLAY_KEY : 0);
+    }
+
+    /**
+     * Compute the Zobrist hash of the position from scratch (for verification purposes)
+     *
+     * @return The value {@link #zobristKey()} should have
+     */
+    long computeZobristKey() {
+        return board.computeZobristKey() ^ (playerId == PlayerId.TWO ? BLACKS_TO_PLAY_KEY : 0);
+    }
+
+    @Override
+    public long positionKey() {
+        return zobristKey();
+    }
+
+    /**
+     * Static evaluation of the position from the pieces of both sides: material (a king is worth more than
+     * a checker), advancement of the checkers towards the crowning row, and checkers left on the back row to
+     * keep the adversary from crowning. The score difference is mapped to a probability by a logistic function.
+     */
+    @Override
+    public double evaluate() {
+        int score = staticScore(true) - staticScore(false);
+        return 1.0 / (1.0 + Math.exp(-score / EVALUATION_SCALE));
+    }
+
+    /**
+     * The score of the pieces of a player in the static evaluation
+     *
+     * @param white <code>true</code> for the whites, <code>false</code> for the blacks
+     * @return The score, in hundredths of a checker
+     */
+    private int staticScore(boolean white) {
+        return CHECKER_VALUE * board.nbCheckers(white) + KING_VALUE * board.nbKings(white)
+                + ADVANCEMENT_VALUE * board.advancement(white) + BACK_RANK_GUARD_VALUE * board.backRankGuards(white);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(zobristKey());
+    }
+
+    /**
+     * Two games are equal if they are in the same position: same pieces and same player to move.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof EnglishDraughts))
+            return false;
+        EnglishDraughts other = (EnglishDraughts) obj;
+        return playerId == other.playerId && board.equals(other.board);
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
@@ -179,249 +338,515 @@ public class EnglishDraughts extends Game {
     }
 
     /**
-     * Retrieve the list of positions of the pawns owned by the current player
+     * Get the tile number a move starts from
      *
-     * @return The list of current player pawn positions
+     * @param move A move code
+     * @return The origin tile number
      */
-    ArrayList<Integer> myPawns() {
-        switch (playerId) {
-            case ONE -> {
-                return board.getWhitePawns();
-            }
-            case TWO -> {
-                return board.getBlackPawns();
-            }
-            case NONE -> {
-                return new ArrayList<>();
+    static int moveOrigin(long move) {
+        return (int) (move & 0x7F);
+    }
+
+    /**
+     * Get the number of jumps of a move
+     *
+     * @param move A move code
+     * @return The number of captures, 0 for a simple move
+     */
+    static int moveNbJumps(long move) {
+        return (int) (move >>> MOVE_JUMPS_SHIFT) & 0x1F;
+    }
+
+    /**
+     * Get the direction of a step of a move (see {@link CheckerBoard.Geometry#UP_LEFT}...)
+     *
+     * @param move A move code
+     * @param step Index of the step (0 for a simple move)
+     * @return The direction of the step
+     */
+    static int moveDirection(long move, int step) {
+        return (int) (move >>> (MOVE_DIRECTIONS_SHIFT + 2 * step)) & 3;
+    }
+
+    /**
+     * Get the tile number a move ends on
+     *
+     * @param move A move code
+     * @return The destination tile number
+     */
+    int moveDestination(long move) {
+        CheckerBoard.Geometry geometry = board.geometry;
+        int square = moveOrigin(move);
+        int nbJumps = moveNbJumps(move);
+        if (nbJumps == 0)
+            return geometry.neighbor[moveDirection(move, 0)][square];
+        for (int step = 0; step < nbJumps; ++step)
+            square = geometry.jump[moveDirection(move, step)][square];
+        return square;
+    }
+
+    /**
+     * The key of a move is made of its origin and destination tiles: captures along different paths share it
+     */
+    @Override
+    public int moveKey(long move) {
+        return moveOrigin(move) * (board.nbPlayableTiles() + 1) + moveDestination(move);
+    }
+
+    @Override
+    public long encodeMove(Move aMove) {
+        if (!(aMove instanceof DraughtsMove))
+            return 0;
+        DraughtsMove move = (DraughtsMove) aMove;
+        if (move.size() < 2 || move.size() > MAX_JUMPS + 1)
+            return 0;
+        CheckerBoard.Geometry geometry = board.geometry;
+        int from = move.get(0);
+        long code = from;
+        if (move.size() == 2) {
+            for (int dir = 0; dir < 4; ++dir) {
+                if (geometry.neighbor[dir][from] == move.get(1))
+                    return code | ((long) dir << MOVE_DIRECTIONS_SHIFT);
             }
         }
-        return new ArrayList<>();
+        for (int step = 0; step < move.size() - 1; ++step) {
+            int to = move.get(step + 1);
+            int dir = 0;
+            while (dir < 4 && geometry.jump[dir][from] != to)
+                ++dir;
+            if (dir == 4)
+                return 0;
+            code |= (long) dir << (MOVE_DIRECTIONS_SHIFT + 2 * step);
+            from = to;
+        }
+        return code | ((long) (move.size() - 1) << MOVE_JUMPS_SHIFT);
     }
 
+    @Override
+    public DraughtsMove decodeMove(long move) {
+        CheckerBoard.Geometry geometry = board.geometry;
+        DraughtsMove draughtsMove = new DraughtsMove();
+        int square = moveOrigin(move);
+        draughtsMove.add(square);
+        int nbJumps = moveNbJumps(move);
+        if (nbJumps == 0) {
+            draughtsMove.add(geometry.neighbor[moveDirection(move, 0)][square]);
+        }
+        for (int step = 0; step < nbJumps; ++step) {
+            square = geometry.jump[moveDirection(move, step)][square];
+            draughtsMove.add(square);
+        }
+        return draughtsMove;
+    }
 
     /**
-     * Generate the list of possible moves
+     * Generate the codes of the possible moves
      * - first check moves with captures
      * - if no capture possible, return displacement moves
      */
     @Override
-    public List<Move> possibleMoves() {
-        // Advice:
-        // create two auxiliary functions :
-        // - one for jump moves from a given position, with capture (and multi-capture).
-        //    Use recursive calls to explore all multiple capture possibilities
-        // - one function that returns the displacement moves from a given position (without capture)
-        //
-        ArrayList<Move> moves = new ArrayList<>();
-
-        for (int p :
-                myPawns()) {
-            DraughtsMove move = new DraughtsMove();
-            move.add(p);
-            moves.addAll(possibleCaptureMovements(move));
+    public int possibleMoves(MoveBuffer moves) {
+        moves.clear();
+        if (nbCachedMoves >= 0) {
+            for (int i = 0; i < nbCachedMoves; ++i)
+                moves.add(cachedMoves[i]);
+            return nbCachedMoves;
         }
-        if (moves.isEmpty()) {
-            for (int p :
-                    myPawns()) {
-                moves.addAll(noCaptureMovements(p));
-            }
-        }
-
-        //System.out.println(moves);
-        return moves;
+        generateMoves(moves);
+        cacheMoves(moves);
+        return moves.size();
     }
 
-    private ArrayList<Move> noCaptureMovements(int from) {
-        ArrayList<Move> moves = new ArrayList<>();
-
-        if (board.isWhite(from) || board.isKing(from)) {
+    /**
+     * Check if the current player has at least one possible move, without generating the moves
+     * (the bitboards tell at once if some piece can jump or move).
+     */
+    @Override
+    public boolean hasAnyMove() {
+        if (nbCachedMoves >= 0)
+            return nbCachedMoves > 0;
+        if (playerId == PlayerId.NONE)
+            return false;
+        boolean white = playerId == PlayerId.ONE;
+        return board.canMove(white) || board.canCapture(white);
+    }
 
-            int upLeft = board.neighborUpLeft(from);
-            int upRight = board.neighborUpRight(from);
+    /**
+     * Check if the current player has to capture, without generating the capture moves
+     *
+     * @return <code>true</code> if at least one capture is possible
+     */
+    public boolean hasAnyCapture() {
+        return playerId != PlayerId.NONE && board.canCapture(playerId == PlayerId.ONE);
+    }
 
-            if (upLeft != 0) {
-                if (isEmpty(upLeft)) {
-                    DraughtsMove upLeftMove = new DraughtsMove();
-                    upLeftMove.add(from);
-                    upLeftMove.add(upLeft);
-                    moves.add(upLeftMove);
+    /**
+     * Draw a uniformly random move without building the list of possible moves:
+     * count the moves, draw an index and generate only the chosen move.
+     * Simple moves are counted per direction with the bitboards,
+     * capture moves are counted per pawn and only the chain of the chosen pawn is generated again.
+     */
+    @Override
+    public long randomMove(RandomGenerator random) {
+        if (nbCachedMoves >= 0)
+            return nbCachedMoves == 0 ? 0 : cachedMoves[random.nextInt(nbCachedMoves)];
+        if (playerId == PlayerId.NONE)
+            return 0;
+        boolean white = playerId == PlayerId.ONE;
+        int nbWords = board.nbMaskWords();
+
+        // Captures are mandatory
+        if (board.canCapture(white)) {
+            if (captureCounts == null)
+                captureCounts = new int[board.nbPlayableTiles()];
+            int nbMoves = 0;
+            int nbJumpers = 0;
+            for (int word = 0; word < nbWords; ++word) {
+                for (long jumpers = board.capturingPieces(white, word); jumpers != 0; jumpers &= jumpers - 1) {
+                    int nbPawnMoves = captureMovements(null, 64 * word + Long.numberOfTrailingZeros(jumpers) + 1, white);
+                    captureCounts[nbJumpers++] = nbPawnMoves;
+                    nbMoves += nbPawnMoves;
                 }
             }
-            if (upRight != 0) {
-                if (isEmpty(upRight)) {
-                    DraughtsMove upRightMove = new DraughtsMove();
-                    upRightMove.add(from);
-                    upRightMove.add(upRight);
-                    moves.add(upRightMove);
+            int chosen = random.nextInt(nbMoves);
+            nbJumpers = 0;
+            for (int word = 0; word < nbWords; ++word) {
+                for (long jumpers = board.capturingPieces(white, word); jumpers != 0; jumpers &= jumpers - 1) {
+                    int nbPawnMoves = captureCounts[nbJumpers++];
+                    if (chosen < nbPawnMoves) {
+                        int pawn = 64 * word + Long.numberOfTrailingZeros(jumpers) + 1;
+                        if (randomMoves == null)
+                            randomMoves = new MoveBuffer();
+                        randomMoves.clear();
+                        captureMovements(randomMoves, pawn, white);
+                        return randomMoves.get(chosen);
+                    }
+                    chosen -= nbPawnMoves;
                 }
             }
-
+            return 0;
         }
-        if (board.isBlack(from) || board.isKing(from)) {
-
-            int downLeft = board.neighborDownLeft(from);
-            int downRight = board.neighborDownRight(from);
 
-            if (downLeft != 0) {
-                if (isEmpty(downLeft)) {
-                    DraughtsMove downLeftMove = new DraughtsMove();
-                    downLeftMove.add(from);
-                    downLeftMove.add(downLeft);
-                    moves.add(downLeftMove);
-                }
-            }
-            if (downRight != 0) {
-                if (isEmpty(downRight)) {
-                    DraughtsMove downRightMove = new DraughtsMove();
-                    downRightMove.add(from);
-                    downRightMove.add(downRight);
-                    moves.add(downRightMove);
+        // Simple moves: one per pawn able to move in a direction
+        int nbMoves = 0;
+        for (int word = 0; word < nbWords; ++word)
+            for (int dir = 0; dir < 4; ++dir)
+                nbMoves += Long.bitCount(board.movablePieces(white, dir, word));
+        if (nbMoves == 0)
+            return 0;
+        int chosen = random.nextInt(nbMoves);
+        for (int word = 0; word < nbWords; ++word) {
+            for (int dir = 0; dir < 4; ++dir) {
+                long movers = board.movablePieces(white, dir, word);
+                int nbDirMoves = Long.bitCount(movers);
+                if (chosen < nbDirMoves) {
+                    for (; chosen > 0; chosen--)
+                        movers &= movers - 1;
+                    int from = 64 * word + Long.numberOfTrailingZeros(movers) + 1;
+                    return from | ((long) dir << MOVE_DIRECTIONS_SHIFT);
                 }
+                chosen -= nbDirMoves;
             }
+        }
+        return 0;
+    }
 
+    /**
+     * Draw a move favouring safe moves: a move is more likely if the moved piece cannot be captured at once
+     * where it lands (no immediate recapture), if it crowns a checker, or if it moves a threatened piece.
+     * Threats are checked with the neighbor tables of the board, and the buffers are reused between calls.
+     */
+    @Override
+    public long heuristicRandomMove(RandomGenerator random) {
+        if (randomMoves == null)
+            randomMoves = new MoveBuffer();
+        MoveBuffer moves = randomMoves;
+        int nbMoves = possibleMoves(moves);
+        if (nbMoves <= 1)
+            return nbMoves == 0 ? 0 : moves.get(0);
+        if (moveWeights == null || moveWeights.length < nbMoves)
+            moveWeights = new int[Math.max(nbMoves, 32)];
+
+        int totalWeight = 0;
+        for (int i = 0; i < nbMoves; ++i) {
+            int weight = heuristicWeight(moves.get(i));
+            moveWeights[i] = weight;
+            totalWeight += weight;
         }
 
-        return moves;
+        int chosen = random.nextInt(totalWeight);
+        int i = 0;
+        while (chosen >= moveWeights[i]) {
+            chosen -= moveWeights[i];
+            i++;
+        }
+        return moves.get(i);
     }
 
-    private boolean movementAlreadyMade(int from, int to, DraughtsMove move) {
+    /**
+     * The weight of a possible move in the heuristic playouts is used as its prior in the selection
+     */
+    @Override
+    public double moveWeight(long move) {
+        return heuristicWeight(move);
+    }
 
-        for (int i = 0; i < move.size()-1; i++) {
-            int c = move.get(i);
-            int nextC = move.get(i+1);
-            if ((c == from || c == to) && (nextC == from || nextC == to)) return true;
+    /**
+     * The weight of a possible move in the heuristic playouts, see {@link #heuristicRandomMove}
+     *
+     * @param move The code of a possible move of the current state
+     * @return The product of the weight factors of the move
+     */
+    private int heuristicWeight(long move) {
+        CheckerBoard.Geometry geometry = board.geometry;
+        boolean white = playerId == PlayerId.ONE;
+        int from = moveOrigin(move);
+        int nbJumps = moveNbJumps(move);
+        // The tile left empty next to the landing tile: the origin of a simple move, the last captured piece
+        int to = from;
+        int vacated = from;
+        if (nbJumps == 0)
+            to = geometry.neighbor[moveDirection(move, 0)][from];
+        for (int step = 0; step < nbJumps; ++step) {
+            int dir = moveDirection(move, step);
+            vacated = geometry.neighbor[dir][to];
+            to = geometry.jump[dir][to];
         }
 
-
-        return false;
+        int weight = 1;
+        if (!board.isThreatened(to, white, vacated))
+            weight *= SAFE_MOVE_WEIGHT;
+        if (!board.isKing(from) && (white ? board.inTopRow(to) : board.inBottomRow(to)))
+            weight *= PROMOTION_WEIGHT;
+        if (board.isThreatened(from, white, 0))
+            weight *= ESCAPE_WEIGHT;
+        return weight;
     }
 
-    private ArrayList<Move> possibleCaptureMovements(DraughtsMove move) {
-
-        ArrayList<Move> moves = new ArrayList<>();
-        int from = move.get(move.size() - 1);
-        int pawn = move.get(0);
+    /**
+     * Keep a copy of the possible moves of the current state, until the next {@link #play(long)} or {@link #undo()}
+     *
+     * @param moves The possible moves
+     */
+    private void cacheMoves(MoveBuffer moves) {
+        int nbMoves = moves.size();
+        if (cachedMoves == null || cacheShared || cachedMoves.length < nbMoves) {
+            cachedMoves = new long[Math.max(nbMoves, 16)];
+            cacheShared = false;
+        }
+        for (int i = 0; i < nbMoves; ++i)
+            cachedMoves[i] = moves.get(i);
+        nbCachedMoves = nbMoves;
+    }
 
-        if (board.isWhite(pawn) || board.isKing(pawn)) {
+    /**
+     * Forget the cached moves and winner, when the state changes
+     */
+    private void invalidateCache() {
+        nbCachedMoves = -1;
+        winnerKnown = false;
+    }
 
-            int upLeft = board.neighborUpLeft(from);
-            int upUpLeft = board.neighborUpLeft(upLeft);
-            int upRight = board.neighborUpRight(from);
-            int upUpRight = board.neighborUpRight(upRight);
+    /**
+     * Generate the codes of the possible moves, without using the cache
+     *
+     * @param moves The buffer to fill (already cleared)
+     */
+    private void generateMoves(MoveBuffer moves) {
+        if (playerId == PlayerId.NONE)
+            return;
+        boolean white = playerId == PlayerId.ONE;
 
-            if (upLeft != 0 && upUpLeft != 0 && !movementAlreadyMade(from, upUpLeft, move)) {
-                if (isAdversary(upLeft) && isEmpty(upUpLeft)) {
-                    DraughtsMove upLeftMove = new DraughtsMove();
-                    upLeftMove.addAll(move);
-                    upLeftMove.add(upUpLeft);
-                    ArrayList<Move> nextMoves = new ArrayList<>();
-                    nextMoves.addAll(possibleCaptureMovements(upLeftMove));
-                    if (nextMoves.isEmpty()) {
-                        moves.add(upLeftMove);
-                    } else {
-                        moves.addAll(nextMoves);
-                    }
+        // The bitboards tell at once which pieces can jump (captures are mandatory)
+        if (board.canCapture(white)) {
+            for (int word = 0; word < board.nbMaskWords(); ++word) {
+                for (long jumpers = board.capturingPieces(white, word); jumpers != 0; jumpers &= jumpers - 1) {
+                    captureMovements(moves, 64 * word + Long.numberOfTrailingZeros(jumpers) + 1, white);
                 }
             }
-            if (upRight != 0 && upUpRight != 0 && !movementAlreadyMade(from, upUpRight, move)) {
-                if (isAdversary(upRight) && isEmpty(upUpRight)) {
-                    DraughtsMove upRightMove = new DraughtsMove();
-                    upRightMove.addAll(move);
-                    upRightMove.add(upUpRight);
-                    ArrayList<Move> nextMoves = new ArrayList<>();
-                    nextMoves.addAll(possibleCaptureMovements(upRightMove));
-                    if (nextMoves.isEmpty()) {
-                        moves.add(upRightMove);
-                    } else {
-                        moves.addAll(nextMoves);
-                    }
-                }
+        } else {
+            for (int p = board.nextPawn(white, 0); p != 0; p = board.nextPawn(white, p)) {
+                noCaptureMovements(moves, p);
             }
-
         }
-        if (board.isBlack(pawn) || board.isKing(pawn)) {
-
-            int downLeft = board.neighborDownLeft(from);
-            int downDownLeft = board.neighborDownLeft(downLeft);
-            int downRight = board.neighborDownRight(from);
-            int downDownRight = board.neighborDownRight(downRight);
-
-            if (downLeft != 0 && downDownLeft != 0 && !movementAlreadyMade(from, downDownLeft, move)) {
-                if (isAdversary(downLeft) && isEmpty(downDownLeft)) {
-                    DraughtsMove downLeftMove = new DraughtsMove();
-                    downLeftMove.addAll(move);
-                    downLeftMove.add(downDownLeft);
-                    ArrayList<Move> nextMoves = new ArrayList<>();
-                    nextMoves.addAll(possibleCaptureMovements(downLeftMove));
-                    if (nextMoves.isEmpty()) {
-                        moves.add(downLeftMove);
-                    } else {
-                        moves.addAll(nextMoves);
-                    }
-                }
+    }
+
+    /**
+     * Add the displacement moves (without capture) of a pawn
+     *
+     * @param moves The buffer of move codes to complete
+     * @param from  Tile number of the pawn
+     */
+    private void noCaptureMovements(MoveBuffer moves, int from) {
+        CheckerBoard.Geometry geometry = board.geometry;
+        boolean king = board.isKing(from);
+        boolean white = board.isWhite(from);
+
+        for (int dir = 0; dir < 4; ++dir) {
+            if (!king && !CheckerBoard.Geometry.isForward(dir, white))
+                continue;
+            int to = geometry.neighbor[dir][from];
+            if (to != 0 && isEmpty(to)) {
+                moves.add(from | ((long) dir << MOVE_DIRECTIONS_SHIFT));
             }
-            if (downRight != 0 && downDownRight != 0 && !movementAlreadyMade(from, downDownRight, move)) {
-                if (isAdversary(downRight) && isEmpty(downDownRight)) {
-                    DraughtsMove downRightMove = new DraughtsMove();
-                    downRightMove.addAll(move);
-                    downRightMove.add(downDownRight);
-                    ArrayList<Move> nextMoves = new ArrayList<>();
-                    nextMoves.addAll(possibleCaptureMovements(downRightMove));
-                    if (nextMoves.isEmpty()) {
-                        moves.add(downRightMove);
-                    } else {
-                        moves.addAll(nextMoves);
-                    }
+        }
+    }
+
+    /**
+     * Add the capture moves of a pawn, exploring the multiple captures depth-first with an explicit stack.
+     * A jump cannot be made twice in the same path (in either way): jumps already made are marked
+     * in a bitmask indexed by the jumped tile and the diagonal.
+     * Only complete paths (that cannot be extended) are moves.
+     *
+     * @param moves  The buffer of move codes to complete, or <code>null</code> to only count the moves
+     * @param origin Tile number of the pawn
+     * @param white  If the pawn is white
+     * @return The number of capture moves of the pawn
+     */
+    private int captureMovements(MoveBuffer moves, int origin, boolean white) {
+        CheckerBoard.Geometry geometry = board.geometry;
+        CaptureStack stack = captureStack;
+        if (stack == null || stack.jumped.length < geometry.nbPlaces / 32 + 1)
+            stack = captureStack = new CaptureStack(geometry.nbPlaces);
+        boolean king = board.isKing(origin);
+        int nbMoves = 0;
+
+        int depth = 0;
+        stack.square[0] = origin;
+        stack.code[0] = origin;
+        stack.nextDir[0] = 0;
+        stack.extended[0] = false;
+
+        while (depth >= 0) {
+            int from = stack.square[depth];
+            int dir = stack.nextDir[depth];
+
+            // All directions explored: emit the path if complete, and backtrack
+            if (dir == 4) {
+                if (!stack.extended[depth] && depth > 0) {
+                    if (moves != null)
+                        moves.add(stack.code[depth] | ((long) depth << MOVE_JUMPS_SHIFT));
+                    nbMoves++;
                 }
+                if (depth > 0)
+                    stack.toggleJumped(stack.jump[depth]);
+                depth--;
+                continue;
             }
+
+            // Directions are explored in the order up-left, up-right, down-left, down-right
+            stack.nextDir[depth] = dir + 1;
+            if (!king && !CheckerBoard.Geometry.isForward(dir, white))
+                continue;
+            int landing = geometry.jump[dir][from];
+            if (landing == 0)
+                continue;
+            int over = geometry.neighbor[dir][from];
+            int jump = 2 * over + CheckerBoard.Geometry.axis(dir);
+            if (stack.isJumped(jump) || !(white ? board.isBlack(over) : board.isWhite(over)) || !isEmpty(landing))
+                continue;
+
+            // Push the jump
+            if (depth == MAX_JUMPS)
+                throw new IllegalStateException("Capture from tile " + origin + " longer than " + MAX_JUMPS
+                        + " jumps, which a move code cannot hold");
+            stack.extended[depth] = true;
+            stack.toggleJumped(jump);
+            stack.code[depth + 1] = stack.code[depth] | ((long) dir << (MOVE_DIRECTIONS_SHIFT + 2 * depth));
+            depth++;
+            stack.square[depth] = landing;
+            stack.jump[depth] = jump;
+            stack.nextDir[depth] = 0;
+            stack.extended[depth] = false;
+        }
+        return nbMoves;
+    }
+
+    /**
+     * Explicit stack of the capture paths exploration, indexed by the number of jumps
+     */
+    private static final class CaptureStack {
+        /** Tile the path ends on */
+        final int[] square = new int[MAX_JUMPS + 1];
+        /** Next direction to explore */
+        final int[] nextDir = new int[MAX_JUMPS + 1];
+        /** Jump index (2 * jumped tile + diagonal) of the last jump */
+        final int[] jump = new int[MAX_JUMPS + 1];
+        /** Code of the path (without the number of jumps) */
+        final long[] code = new long[MAX_JUMPS + 1];
+        /** If the path has been extended by at least one jump */
+        final boolean[] extended = new boolean[MAX_JUMPS + 1];
+        /** Bitmask of the jumps of the current path */
+        final long[] jumped;
+
+        CaptureStack(int nbPlaces) {
+            jumped = new long[nbPlaces / 32 + 1];
+        }
+
+        boolean isJumped(int jump) {
+            return (jumped[jump >>> 6] & (1L << jump)) != 0;
         }
 
-        return moves;
+        void toggleJumped(int jump) {
+            jumped[jump >>> 6] ^= 1L << jump;
+        }
     }
 
 
     @Override
-    public void play(Move aMove) {
-        // Player should be valid
-        if (playerId == PlayerId.NONE)
-            return;
-        // We will cast Move to DraughtsMove (kind of ArrayList<Integer>
-        if (!(aMove instanceof DraughtsMove))
+    public void play(long move) {
+        // Player and move should be valid
+        if (playerId == PlayerId.NONE || move == 0)
             return;
-        // Cast and apply the move
-        DraughtsMove move = (DraughtsMove) aMove;
+        CheckerBoard.Geometry geometry = board.geometry;
+
+        // Undo record
+        long undoInfo = (long) nbKingMovesWithoutCapture << 32;
 
         // Move pawn and capture opponents
-        Iterator<Integer> it = move.iterator();
-        Integer from = it.next();
-        StringBuffer sb = new StringBuffer();
-        sb.append(from);
-        while (it.hasNext()) {
-            Integer to = it.next();
+        int from = moveOrigin(move);
+        int nbJumps = moveNbJumps(move);
+        if (nbJumps == 0) {
+            int to = geometry.neighbor[moveDirection(move, 0)][from];
             board.movePawn(from, to);
-            int pawnTaken = board.squareBetween(from, to);
-            if (pawnTaken != 0) {
-                board.removePawn(pawnTaken);
-                nbKingMovesWithoutCapture = -1;
-            }
-
             from = to;
         }
-
+        for (int step = 0; step < nbJumps; ++step) {
+            int dir = moveDirection(move, step);
+            int to = geometry.jump[dir][from];
+            int taken = geometry.neighbor[dir][from];
+            if (board.isKing(taken))
+                undoInfo |= 1L << step;
+            board.movePawn(from, to);
+            board.removePawn(taken);
+            nbKingMovesWithoutCapture = -1;
+            from = to;
+        }
 
         // Promote to king if the pawn ends on the opposite of the board
-        int squarePawn = move.get(move.size() - 1);
+        int squarePawn = from;
 
         if (this.playerId == playerId.ONE) {
             if (board.inTopRow(squarePawn) && board.get(squarePawn) == board.WHITE_CHECKER) {
                 board.crownPawn(squarePawn);
+                undoInfo |= UNDO_CROWNED;
             }
         } else {
             if (board.inBottomRow(squarePawn) && board.get(squarePawn) == board.BLACK_CHECKER) {
                 board.crownPawn(squarePawn);
+                undoInfo |= UNDO_CROWNED;
             }
         }
 
+        // Push the undo record
+        if (history == null) {
+            history = new long[64];
+        } else if (historySize == history.length) {
+            history = Arrays.copyOf(history, 2 * historySize);
+        }
+        history[historySize++] = move;
+        history[historySize++] = undoInfo;
+
         // Next player
         if (player() == playerId.ONE) {
             this.playerId = playerId.TWO;
@@ -432,6 +857,41 @@ public class EnglishDraughts extends Game {
         nbTurn++;
         // Keep track of successive moves with kings without capture
         nbKingMovesWithoutCapture++;
+        invalidateCache();
+    }
+
+
+    @Override
+    public void undo() {
+        assert historySize > 0 : "No move to undo";
+        long undoInfo = history[--historySize];
+        long move = history[--historySize];
+        CheckerBoard.Geometry geometry = board.geometry;
+
+        // Back to the previous player and counters
+        playerId = playerId.other();
+        nbTurn--;
+        nbKingMovesWithoutCapture = (int) (undoInfo >> 32);
+        invalidateCache();
+
+        // Move the pawn back, as a checker if it was crowned by the move
+        int from = moveOrigin(move);
+        int to = moveDestination(move);
+        if ((undoInfo & UNDO_CROWNED) != 0)
+            board.uncrownPawn(to);
+        board.movePawn(to, from);
+
+        // Put back the captured pieces
+        boolean adversaryWhite = playerId == PlayerId.TWO;
+        int square = from;
+        for (int step = 0; step < moveNbJumps(move); ++step) {
+            int dir = moveDirection(move, step);
+            boolean king = (undoInfo & (1L << step)) != 0;
+            board.set(geometry.neighbor[dir][square], adversaryWhite
+                    ? (king ? CheckerBoard.WHITE_KING : CheckerBoard.WHITE_CHECKER)
+                    : (king ? CheckerBoard.BLACK_KING : CheckerBoard.BLACK_CHECKER));
+            square = geometry.jump[dir][square];
+        }
     }
 
 
@@ -446,11 +906,23 @@ public class EnglishDraughts extends Game {
      * - adversary with no more pawns or no move possibilities
      * Null game condition (return PlayerId.NONE) is
      * - more than 25 successive moves of only kings and without any capture
+     * The result is cached until the next move.
      */
     @Override
     public PlayerId winner() {
+        if (!winnerKnown) {
+            cachedWinner = computeWinner();
+            winnerKnown = true;
+        }
+        return cachedWinner;
+    }
+
+    /**
+     * Compute the result of {@link #winner()}
+     */
+    private PlayerId computeWinner() {
 
-        if (possibleMoves().size() == 0) {
+        if (!hasAnyMove()) {
             switch(player()) {
                 case ONE -> {
                     return PlayerId.TWO;
@@ -462,8 +934,8 @@ public class EnglishDraughts extends Game {
         }
 
         // return the winner ID if possible
-        if (board.getWhitePawns().isEmpty()) return PlayerId.TWO;
-        else if (board.getBlackPawns().isEmpty()) return PlayerId.ONE;
+        if (board.nbPawns(true) == 0) return PlayerId.TWO;
+        else if (board.nbPawns(false) == 0) return PlayerId.ONE;
             // return PlayerId.NONE if the game is null
         else if (nbKingMovesWithoutCapture >= 25) return PlayerId.NONE;
             // Return null is the game has not ended yet
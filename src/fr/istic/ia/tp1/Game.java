@@ -1,6 +1,9 @@
 package fr.istic.ia.tp1;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.random.RandomGenerator;
 
 /**
  * An abstract class representing a two-player game.
@@ -17,6 +20,73 @@ public abstract class Game implements Cloneable {
 	 */
 	static public interface Move { }
 	
+	/**
+	 * A reusable buffer of moves encoded as primitive <code>long</code> codes.
+	 * The meaning of a code is defined by each game, 0 is never a valid move code.
+	 */
+	static public class MoveBuffer {
+		private long[] moves;
+		private int size;
+		
+		/**
+		 * Default constructor, with room for 32 moves (the buffer grows if needed)
+		 */
+		public MoveBuffer() {
+			this(32);
+		}
+		
+		/**
+		 * Constructor with an initial capacity
+		 * @param capacity Initial number of moves the buffer can hold without growing
+		 */
+		public MoveBuffer(int capacity) {
+			moves = new long[Math.max(capacity, 1)];
+			size = 0;
+		}
+		
+		/**
+		 * Remove all the moves from the buffer (keeps the storage)
+		 */
+		public void clear() {
+			size = 0;
+		}
+		
+		/**
+		 * Append a move code to the buffer
+		 * @param move The move code
+		 */
+		public void add(long move) {
+			if (size == moves.length)
+				moves = Arrays.copyOf(moves, 2 * size);
+			moves[size++] = move;
+		}
+		
+		/**
+		 * Get a move code
+		 * @param i Index of the move, between 0 and <code>size()-1</code>
+		 * @return The move code
+		 */
+		public long get(int i) {
+			return moves[i];
+		}
+		
+		/**
+		 * Get the number of moves in the buffer
+		 * @return the number of moves
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * Check if the buffer holds no move
+		 * @return
+		 */
+		public boolean isEmpty() {
+			return size == 0;
+		}
+	}
+	
 	/**
 	 * An enum to represent the current player and the winner in a two-player game.
 	 * Also provides the {@link PlayerId#NONE} value to represent for instance equality.
@@ -49,18 +119,121 @@ public abstract class Game implements Cloneable {
 		}
 	}
 	
+	/**
+	 * Write the codes of all possible moves from the current state into a buffer. The order has to be deterministic,
+	 * and the same as {@link Game#possibleMoves()}.
+	 * @param moves The buffer to fill, cleared first
+	 * @return the number of possible moves
+	 */
+	public abstract int possibleMoves(MoveBuffer moves);
+	
+	/**
+	 * Check if the current player has at least one possible move. 
+	 * Games should override it with a check stopping at the first move found.
+	 * @return <code>true</code> if {@link Game#possibleMoves(MoveBuffer)} would not be empty
+	 */
+	public boolean hasAnyMove() {
+		return possibleMoves(new MoveBuffer()) > 0;
+	}
+	
+	/**
+	 * Draw a move uniformly among the possible moves. 
+	 * Games should override it to avoid generating all the moves.
+	 * @param random The random number generator to use
+	 * @return The code of the chosen move, 0 if there is no possible move
+	 */
+	public long randomMove(RandomGenerator random) {
+		MoveBuffer moves = new MoveBuffer();
+		if (possibleMoves(moves) == 0)
+			return 0;
+		return moves.get(random.nextInt(moves.size()));
+	}
+	
+	/**
+	 * Draw a move for a playout, favouring the moves that look good at first sight (see {@link PlayoutPolicy#HEURISTIC}).
+	 * It is called for every move of the playouts, so it should not allocate.
+	 * Games should override it with cheap game knowledge, it draws a uniform move by default.
+	 * @param random The random number generator to use
+	 * @return The code of the chosen move, 0 if there is no possible move
+	 */
+	public long heuristicRandomMove(RandomGenerator random) {
+		return randomMove(random);
+	}
+	
+	/**
+	 * Get the prior weight of a possible move of the current state, e.g. for the selection of {@link SelectionPolicy#puct}:
+	 * the moves are expected to be good in proportion to their weights.
+	 * Games should override it with cheap game knowledge, all the moves weigh 1 by default.
+	 * @param move The code of a possible move
+	 * @return A positive weight
+	 */
+	public double moveWeight(long move) {
+		return 1.0;
+	}
+	
+	/**
+	 * Get a key of a move for the statistics of moves shared by different positions (e.g. by {@link MastPolicy}):
+	 * moves with the same effect in different positions should have the same key, such as the moves from
+	 * a tile to another one. Games should override it, the default key is a hash of the move code.
+	 * @param move The code of a move
+	 * @return A non-negative key
+	 */
+	public int moveKey(long move) {
+		return Long.hashCode(move) & Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Play the move with the provided code on the current game state. 
+	 * The game state is updated and the game switches to next player.  
+	 * @param move The code of the move to play, should be a valid move (in {@link Game#possibleMoves(MoveBuffer)}).
+	 */
+	public abstract void play(long move);
+	
+	/**
+	 * Undo the last move played with {@link Game#play(long)} (or {@link Game#play(Move)}), 
+	 * restoring exactly the game state before it. Moves played before a {@link Game#clone()} cannot be undone
+	 * on the copy.
+	 */
+	public abstract void undo();
+	
+	/**
+	 * Get the primitive code of a move
+	 * @param move A move of this game
+	 * @return The code of the move, 0 if the move cannot be encoded
+	 */
+	public abstract long encodeMove(Move move);
+	
+	/**
+	 * Build the move object corresponding to a move code (e.g. to display it)
+	 * @param move A move code
+	 * @return The corresponding move
+	 */
+	public abstract Move decodeMove(long move);
+	
 	/**
 	 * Get the list of all possible moves from the current state. The order has to be deterministic.
+	 * This is an adapter over {@link Game#possibleMoves(MoveBuffer)}, prefer the latter in loops.
 	 * @return the list of all possible moves
 	 */
-	public abstract List<Move> possibleMoves();
+	public List<Move> possibleMoves() {
+		MoveBuffer codes = new MoveBuffer();
+		possibleMoves(codes);
+		ArrayList<Move> moves = new ArrayList<Move>(codes.size());
+		for (int i = 0; i < codes.size(); ++i) {
+			moves.add(decodeMove(codes.get(i)));
+		}
+		return moves;
+	}
 	
 	/**
 	 * Play the provided move on the current game state. 
 	 * The game state is updated and the game switches to next player.  
+	 * This is an adapter over {@link Game#play(long)}.
 	 * @param move The move to play, should be a valid move (in {@link Game#possibleMoves()}).
 	 */
-	public abstract void play(Move move);
+	public void play(Move move) {
+		play(encodeMove(move));
+	}
 	
 	/**
 	 * Get the PlayerID of the current player
@@ -75,6 +248,25 @@ public abstract class Game implements Cloneable {
 	 */
 	public abstract PlayerId winner();
 	
+	/**
+	 * Get a hash of the current position, equal for equal positions whatever the moves that led to them
+	 * (e.g. to share the statistics of transpositions in a search).
+	 * Games should override it with a 64-bit hash such as a Zobrist key.
+	 * @return The hash of the position
+	 */
+	public long positionKey() {
+		return hashCode();
+	}
+	
+	/**
+	 * Estimate the outcome of the game from the current position without playing it to the end
+	 * (e.g. to score a rollout cut after a few moves). Games should override it with a fast static evaluation.
+	 * @return The estimated probability that {@link PlayerId#ONE} wins, between 0 and 1 (a draw is worth 0.5)
+	 */
+	public double evaluate() {
+		return 0.5;
+	}
+	
 	@Override
 	public abstract Game clone();
 	
@@ -88,11 +88,73 @@ public class MainGameLoop {
 		list.add( new NamedSupplier<Player>("MCTS 2 s",  () -> new PlayerMCTS(2000))   );
 		list.add( new NamedSupplier<Player>("MCTS 5 s",  () -> new PlayerMCTS(5000))   );
 		list.add( new NamedSupplier<Player>("MCTS 10 s", () -> new PlayerMCTS(10000))  );
+		list.add( new NamedSupplier<Player>("MCTS 1 s, depth 20 + PUCT",  () -> presetPlayerMCTS(1000))  );
+		list.add( new NamedSupplier<Player>("MCTS 10 s, depth 20 + PUCT", () -> presetPlayerMCTS(10000)) );
+		list.add( new NamedSupplier<Player>("MCTS, choose the options", () -> chooseAndCreatePlayerMCTS()) );
 		
 		System.out.println("Select player type for " + name + ":");
 		return chooseInList(list).get();
 	}
 	
+	/**
+	 * Create a MCTS player with a preset of search options: rollouts cut after 20 moves and scored by the static
+	 * evaluation, and the PUCT(1) selection policy with the safe-move priors of {@link Game#moveWeight(long)}
+	 * @param timeAllowedMillis Allowed computation time, in milliseconds
+	 * @return A new {@link PlayerMCTS} instance
+	 */
+	static Player presetPlayerMCTS(int timeAllowedMillis) {
+		PlayerMCTS player = new PlayerMCTS(timeAllowedMillis);
+		player.setRolloutDepth(20);
+		player.setSelectionPolicy(SelectionPolicy.puct(1));
+		return player;
+	}
+	
+	/**
+	 * A {@link PlayerMCTS} factory, asking the user to chose the computation time, the threads and the search options
+	 * @return A new {@link PlayerMCTS} instance
+	 */
+	static Player chooseAndCreatePlayerMCTS() {
+		ArrayList<NamedSupplier<Integer>> times = new ArrayList<NamedSupplier<Integer>>();
+		times.add( new NamedSupplier<Integer>("1 s",  () -> 1000)  );
+		times.add( new NamedSupplier<Integer>("2 s",  () -> 2000)  );
+		times.add( new NamedSupplier<Integer>("5 s",  () -> 5000)  );
+		times.add( new NamedSupplier<Integer>("10 s", () -> 10000) );
+		System.out.println("Select the computation time:");
+		int timeAllowedMillis = chooseInList(times).get();
+		
+		int nbCores = Runtime.getRuntime().availableProcessors();
+		ArrayList<NamedSupplier<PlayerMCTS>> threads = new ArrayList<NamedSupplier<PlayerMCTS>>();
+		threads.add( new NamedSupplier<PlayerMCTS>("1 thread", () -> new PlayerMCTS(timeAllowedMillis)) );
+		if (nbCores > 1) {
+			threads.add( new NamedSupplier<PlayerMCTS>(nbCores + " threads, independent trees",
+					() -> new PlayerMCTS(timeAllowedMillis, nbCores, PlayerMCTS.Parallelization.ROOT)) );
+			threads.add( new NamedSupplier<PlayerMCTS>(nbCores + " threads, shared tree",
+					() -> new PlayerMCTS(timeAllowedMillis, nbCores, PlayerMCTS.Parallelization.TREE)) );
+			threads.add( new NamedSupplier<PlayerMCTS>(nbCores + " threads, parallel rollouts",
+					() -> new PlayerMCTS(timeAllowedMillis, nbCores, PlayerMCTS.Parallelization.LEAF)) );
+		}
+		System.out.println("Select the threads:");
+		PlayerMCTS player = chooseInList(threads).get();
+		
+		// Each option is applied when chosen, and removed from the list (a playout policy replaces the previous one)
+		ArrayList<NamedSupplier<Boolean>> options = new ArrayList<NamedSupplier<Boolean>>();
+		options.add( new NamedSupplier<Boolean>("Done", () -> false) );
+		options.add( new NamedSupplier<Boolean>("Lazy expansion",  () -> { player.setLazyExpansion(2.0); return true; }) );
+		options.add( new NamedSupplier<Boolean>("Pondering",       () -> { player.setPondering(true); return true; }) );
+		options.add( new NamedSupplier<Boolean>("Transpositions",  () -> { player.setTranspositions(1 << 20); return true; }) );
+		options.add( new NamedSupplier<Boolean>("Evaluated short rollouts", () -> { player.setRolloutDepth(20); return true; }) );
+		options.add( new NamedSupplier<Boolean>("Safe-move playouts",       () -> { player.setPlayoutPolicy(PlayoutPolicy.HEURISTIC); return true; }) );
+		options.add( new NamedSupplier<Boolean>("MAST playouts",   () -> { player.setPlayoutPolicy(MastPolicy.epsilonGreedy(0.2)); return true; }) );
+		options.add( new NamedSupplier<Boolean>("RAVE",            () -> { player.setRave(1000); return true; }) );
+		options.add( new NamedSupplier<Boolean>("PUCT with safe-move priors", () -> { player.setSelectionPolicy(SelectionPolicy.puct(1)); return true; }) );
+		System.out.println("Select the search options, then Done:");
+		NamedSupplier<Boolean> option;
+		while ((option = chooseInList(options)).get()) {
+			options.remove(option);
+		}
+		return player;
+	}
+	
 	/**
 	 * A {@link Game} factory, asking the user to chose the object to create from a list
 	 * @return A new {@link Game} instance
@@ -145,6 +207,8 @@ public class MainGameLoop {
 			// Exit if something went wrong
 			if (move == null) {
 				System.out.println("Error, " + game.playerName(game.player())+  " cannot play. Abort.");
+				player1.close();
+				player2.close();
 				return;
 			}
 
@@ -156,6 +220,10 @@ public class MainGameLoop {
 			game.play(move);
 		}
 		
+		// Release the threads of the players
+		player1.close();
+		player2.close();
+		
 		// Display the winner
 		System.out.println(game.view());
 		System.out.println(game.playerName(game.winner()) + " wins!");
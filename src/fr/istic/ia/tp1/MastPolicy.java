@@ -0,0 +1,234 @@
+package fr.istic.ia.tp1;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import fr.istic.ia.tp1.Game.MoveBuffer;
+import fr.istic.ia.tp1.Game.PlayerId;
+
+/**
+ * A playout policy learning from the previous simulations (Move-Average Sampling Technique, MAST):
+ * a table keeps the average result of the moves of each player, whatever the position they are played in
+ * ({@link Game#moveKey(long)}, the origin and destination tiles in draughts), and the playouts favour the moves
+ * with the best averages.
+ * <p>
+ * The table is updated at the end of each playout with the moves it played, and by the backpropagation of the
+ * MCTS steps with the moves of the tree. It is kept across the steps and the moves of a game, and it can be shared
+ * by several trees and threads: the statistics are updated atomically. The moves of the current playout are
+ * recorded per thread.
+ */
+public final class MastPolicy implements PlayoutPolicy {
+
+    /**
+     * The number of entries of the table (for both players), enough for the move keys of a 12x12 board
+     */
+    private static final int TABLE_SIZE = 1 << 14;
+
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    /**
+     * The number of simulations through the moves, indexed by {@link #entry}
+     */
+    private final int[] n = new int[TABLE_SIZE];
+
+    /**
+     * The number of simulations won by the player of the moves, indexed by {@link #entry}
+     */
+    private final double[] w = new double[TABLE_SIZE];
+
+    /**
+     * <code>true</code> to draw moves with the Gibbs (softmax) distribution of their averages,
+     * <code>false</code> for epsilon-greedy
+     */
+    private final boolean gibbs;
+
+    /**
+     * The temperature of the Gibbs distribution, or the probability of a uniform move of epsilon-greedy
+     */
+    private final double parameter;
+
+    /**
+     * The moves of the running playout and the scratch buffers of each thread
+     */
+    private final ThreadLocal<Playout> playouts = ThreadLocal.withInitial(Playout::new);
+
+    /**
+     * The state of a thread running playouts
+     */
+    private static final class Playout {
+        final MoveBuffer moves = new MoveBuffer();
+        double[] weights = new double[32];
+
+        /**
+         * The table entries of the moves played since the start of the playout
+         */
+        int[] entries = new int[256];
+        int nbEntries;
+    }
+
+    private MastPolicy(boolean gibbs, double parameter) {
+        this.gibbs = gibbs;
+        this.parameter = parameter;
+    }
+
+    /**
+     * Create a policy playing the move with the best average, or a uniformly random move with probability
+     * <code>epsilon</code> (moves never tried count as an average of 0.5)
+     *
+     * @param epsilon The probability of a uniformly random move, e.g. 0.2
+     * @return A new policy, with an empty table
+     */
+    public static MastPolicy epsilonGreedy(double epsilon) {
+        return new MastPolicy(false, epsilon);
+    }
+
+    /**
+     * Create a policy drawing the moves with a probability proportional to <code>exp(average / temperature)</code>
+     * (Gibbs distribution, moves never tried count as an average of 0.5)
+     *
+     * @param temperature The temperature: the lower, the greedier, e.g. 0.1
+     * @return A new policy, with an empty table
+     */
+    public static MastPolicy gibbs(double temperature) {
+        return new MastPolicy(true, temperature);
+    }
+
+    /**
+     * The table entry of a move played by the player to move
+     *
+     * @param game The game state in which the move is played
+     * @param move The code of the move
+     * @return The index of the entry
+     */
+    private static int entry(Game game, long move) {
+        return ((game.moveKey(move) << 1) | (game.player() == PlayerId.TWO ? 1 : 0)) & (TABLE_SIZE - 1);
+    }
+
+    /**
+     * The average result of the moves of an entry
+     *
+     * @param entry The index of the entry
+     * @return The ratio of the simulations won by the player of the moves, 0.5 if they were never tried
+     */
+    private double average(int entry) {
+        int count = n[entry];
+        return count == 0 ? 0.5 : w[entry] / count;
+    }
+
+    /**
+     * Get the average result of a move in the table
+     *
+     * @param game The game state in which the move is played
+     * @param move The code of the move
+     * @return The ratio of the simulations won by the player of the move, 0.5 if it was never tried
+     */
+    public double average(Game game, long move) {
+        return average(entry(game, move));
+    }
+
+    /**
+     * Get the number of simulations through a move in the table
+     *
+     * @param game The game state in which the move is played
+     * @param move The code of the move
+     * @return The number of simulations of the move, from the tree and the playouts
+     */
+    int nbSimulations(Game game, long move) {
+        return n[entry(game, move)];
+    }
+
+    @Override
+    public long nextMove(Game game, RandomGenerator random) {
+        Playout playout = playouts.get();
+        long move;
+        if (!gibbs && random.nextDouble() < parameter) {
+            move = game.randomMove(random);
+        } else {
+            MoveBuffer moves = playout.moves;
+            int nbMoves = game.possibleMoves(moves);
+            move = nbMoves == 0 ? 0 : moves.get(gibbs ? drawGibbs(game, random, playout) : best(game, random, moves));
+        }
+        if (move != 0) {
+            if (playout.nbEntries == playout.entries.length)
+                playout.entries = Arrays.copyOf(playout.entries, 2 * playout.nbEntries);
+            playout.entries[playout.nbEntries++] = entry(game, move);
+        }
+        return move;
+    }
+
+    /**
+     * Find the move with the best average, ties broken at random
+     *
+     * @return The index of the move in <code>moves</code>
+     */
+    private int best(Game game, RandomGenerator random, MoveBuffer moves) {
+        int best = 0;
+        int nbTies = 1;
+        double max = average(entry(game, moves.get(0)));
+        for (int i = 1; i < moves.size(); i++) {
+            double value = average(entry(game, moves.get(i)));
+            if (value > max) {
+                max = value;
+                best = i;
+                nbTies = 1;
+            } else if (value == max && random.nextInt(++nbTies) == 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Draw a move with the Gibbs distribution of the averages
+     *
+     * @return The index of the move in the moves of the playout
+     */
+    private int drawGibbs(Game game, RandomGenerator random, Playout playout) {
+        MoveBuffer moves = playout.moves;
+        int nbMoves = moves.size();
+        if (playout.weights.length < nbMoves)
+            playout.weights = new double[Math.max(nbMoves, 2 * playout.weights.length)];
+        double[] weights = playout.weights;
+        double total = 0;
+        for (int i = 0; i < nbMoves; i++) {
+            weights[i] = Math.exp(average(entry(game, moves.get(i))) / parameter);
+            total += weights[i];
+        }
+        double chosen = random.nextDouble() * total;
+        for (int i = 0; i < nbMoves - 1; i++) {
+            chosen -= weights[i];
+            if (chosen < 0)
+                return i;
+        }
+        return nbMoves - 1;
+    }
+
+    @Override
+    public void playoutEnded(double valueOne) {
+        Playout playout = playouts.get();
+        for (int i = 0; i < playout.nbEntries; i++) {
+            int entry = playout.entries[i];
+            addStats(entry, 1, (entry & 1) == 0 ? valueOne : 1 - valueOne);
+        }
+        playout.nbEntries = 0;
+    }
+
+    @Override
+    public void treeMoveResults(Game game, long move, int n, double wins) {
+        addStats(entry(game, move), n, wins);
+    }
+
+    /**
+     * Atomically add results to an entry
+     */
+    private void addStats(int entry, int n, double w) {
+        INTS.getAndAdd(this.n, entry, n);
+        double previous;
+        do {
+            previous = (double) DOUBLES.getVolatile(this.w, entry);
+        } while (!DOUBLES.weakCompareAndSet(this.w, entry, previous, previous + w));
+    }
+}
@@ -1,11 +1,25 @@
 package fr.istic.ia.tp1;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.random.RandomGenerator;
 
 import fr.istic.ia.tp1.Game.Move;
+import fr.istic.ia.tp1.Game.MoveBuffer;
 import fr.istic.ia.tp1.Game.PlayerId;
 
 /**
@@ -16,76 +30,6 @@ import fr.istic.ia.tp1.Game.PlayerId;
 @SuppressWarnings("ALL")
 public class MonteCarloTreeSearch {
 
-    /**
-     * A class to represent an evaluation node in the MCTS tree.
-     * This is a member class so that each node can access the global statistics of the owning MCTS.
-     *
-     * @author vdrevell
-     */
-    class EvalNode {
-        /**
-         * The number of simulations run through this node
-         */
-        int n;
-
-        /**
-         * The number of winning runs
-         */
-        double w;
-
-        /**
-         * The game state corresponding to this node
-         */
-        Game game;
-
-        /**
-         * The children of the node: the games states accessible by playing a move from this node state
-         */
-        ArrayList<EvalNode> children;
-
-        /**
-         * The only constructor of EvalNode.
-         *
-         * @param game The game state corresponding to this node.
-         */
-        EvalNode(Game game) {
-            this.game = game;
-            children = new ArrayList<EvalNode>();
-            w = 0.0;
-            n = 0;
-        }
-
-        /**
-         * Compute the Upper Confidence Bound for Trees (UCT) value for the node.
-         *
-         * @return UCT value for the node
-         */
-        double uct(int nbTimeParentVisited) {
-            double c = Math.sqrt(2);
-            double uct = score() + c * Math.sqrt(Math.log(nbTimeParentVisited) / this.n);
-            return uct;
-        }
-
-        /**
-         * "Score" of the node, i.e estimated probability of winning when moving to this node
-         *
-         * @return Estimated probability of win for the node
-         */
-        double score() {
-            return w / n;
-        }
-
-        /**
-         * Update the stats (n and w) of the node with the provided rollout results
-         *
-         * @param res
-         */
-        void updateStats(RolloutResults res) {
-            this.n = n + res.n;
-            this.w = w + res.nbWins(game.player());
-        }
-    }
-
     /**
      * A class to hold the results of the rollout phase
      * Keeps the number of wins for each player and the number of simulations.
@@ -159,6 +103,18 @@ public class MonteCarloTreeSearch {
             n++;
         }
 
+        /**
+         * Update playout statistics with the value of a playout that did not reach the end of the game:
+         * <code>valueOne</code> wins for player 1 and the rest for player 2
+         *
+         * @param valueOne The estimated probability of a win of {@link PlayerId#ONE}, between 0 and 1
+         */
+        public void update(double valueOne) {
+            win1 += valueOne;
+            win2 += 1.0 - valueOne;
+            n++;
+        }
+
         /**
          * Getter for the number of wins of a player
          *
@@ -187,14 +143,350 @@ public class MonteCarloTreeSearch {
     }
 
     /**
-     * The root of the MCTS tree
+     * Atomic accessor to the number of simulations, for parallel searches on a shared tree
+     */
+    private static final VarHandle N_TOTAL;
+
+    static {
+        try {
+            N_TOTAL = MethodHandles.lookup().findVarHandle(MonteCarloTreeSearch.class, "nTotal", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The number of playouts of a MCTS step
+     */
+    static final int NB_ROLLOUTS_PER_STEP = 100;
+
+    /**
+     * The nodes of the MCTS tree (the root is {@link NodeStore#ROOT})
+     */
+    NodeStore tree;
+
+    /**
+     * The memory budget of the tree nodes and of the transposition table, in bytes
+     */
+    private final long maxTreeBytes;
+
+    /**
+     * The game state of the root. During a MCTS step, moves are played on it to walk down the tree,
+     * and undone afterwards.
      */
-    EvalNode root;
+    Game game;
 
     /**
      * The total number of performed simulations (rollouts)
      */
-    int nTotal;
+    volatile int nTotal;
+
+    /**
+     * Reused buffer of move codes for the expansion
+     */
+    private final MoveBuffer moves = new MoveBuffer();
+
+    /**
+     * The random number generator of the rollouts
+     */
+    final RandomGenerator random;
+
+    /**
+     * The state of a thread walking the tree: its own copy of the game, buffers and random stream
+     */
+    private final class Worker {
+        final Game game;
+        final MoveBuffer moves;
+        final RandomGenerator random;
+
+        /**
+         * The nodes visited by the current step, from the root
+         */
+        int[] visited = new int[64];
+        int nbVisited;
+
+        /**
+         * The position hashes of the visited nodes, with transpositions
+         */
+        long[] keys = new long[64];
+
+        /**
+         * Virtual loss added to the nodes on the path (0 when the tree is not shared)
+         */
+        final int virtualLoss;
+
+        /**
+         * The recorder of the moves of the simulations, with RAVE (created when first needed)
+         */
+        AmafRecorder amaf;
+
+        /**
+         * The prior probabilities of the children of the node being expanded, with PUCT
+         */
+        double[] priors = new double[32];
+
+        Worker(Game game, MoveBuffer moves, RandomGenerator random, int virtualLoss) {
+            this.game = game;
+            this.moves = moves;
+            this.random = random;
+            this.virtualLoss = virtualLoss;
+        }
+    }
+
+    /**
+     * The number of bits of the index of the table of moves of {@link AmafRecorder}
+     */
+    private static final int AMAF_TABLE_BITS = 12;
+
+    /**
+     * Records the moves of the simulations of a step to update the all-moves-as-first (AMAF) statistics of the
+     * children of the nodes of its path, for RAVE. It wraps the playout policy of the search.
+     * <p>
+     * A simulation is the path of the step followed by a playout. The moves are not stored as a list:
+     * a table indexed by a hash of the move code and the parity of the ply (the player) keeps the ply where
+     * each move was first played, and a stamp tells which simulation it belongs to, so that nothing needs to be
+     * cleared between the simulations. The results are summed over the simulations of the step, and added
+     * to the nodes once.
+     */
+    private final class AmafRecorder implements PlayoutPolicy {
+        final Worker worker;
+        PlayoutPolicy policy;
+
+        /**
+         * The simulation in which the moves of the table were played, and the ply of their first occurrence
+         */
+        final int[] stamp = new int[1 << AMAF_TABLE_BITS];
+        final int[] firstPly = new int[1 << AMAF_TABLE_BITS];
+        int simulation;
+        int ply;
+
+        /**
+         * The first child of each node of the path (as it was when the step began its simulations),
+         * and the index of the statistics of that child in {@link #counts} and {@link #wins}
+         */
+        int[] firstChild = new int[64];
+        int[] offset = new int[64];
+
+        /**
+         * The AMAF statistics of the step for the children of the nodes of the path
+         */
+        int[] counts = new int[256];
+        double[] wins = new double[256];
+
+        /**
+         * Whether the player of the root is {@link PlayerId#ONE}: like the statistics of the nodes,
+         * the AMAF statistics count the wins of the player of the root
+         */
+        boolean rootIsOne;
+
+        AmafRecorder(Worker worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * Prepare the simulations of a step, once the path is known
+         *
+         * @param policy The playout policy of the search
+         * @param game   The game state at the end of the path
+         */
+        void begin(PlayoutPolicy policy, Game game) {
+            this.policy = policy;
+            int depth = worker.nbVisited;
+            if (firstChild.length < depth) {
+                firstChild = new int[2 * depth];
+                offset = new int[2 * depth];
+            }
+            int total = 0;
+            for (int j = 0; j < depth; j++) {
+                int node = worker.visited[j];
+                firstChild[j] = tree.firstChild(node);
+                offset[j] = total;
+                if (firstChild[j] != NodeStore.NONE)
+                    total += tree.nbChildren(node);
+            }
+            if (counts.length < total) {
+                counts = new int[Math.max(total, 2 * counts.length)];
+                wins = new double[counts.length];
+            }
+            Arrays.fill(counts, 0, total, 0);
+            Arrays.fill(wins, 0, total, 0.0);
+            // Players alternate: the player of the root is the one to move at even depths
+            PlayerId rootPlayer = (depth - 1) % 2 == 0 ? game.player() : game.player().other();
+            rootIsOne = rootPlayer == PlayerId.ONE;
+            startSimulation();
+        }
+
+        /**
+         * Start a new simulation with the moves of the path
+         */
+        private void startSimulation() {
+            if (++simulation == 0) {
+                Arrays.fill(stamp, 0);
+                simulation = 1;
+            }
+            ply = 0;
+            for (int j = 1; j < worker.nbVisited; j++) {
+                record(tree.move(worker.visited[j]));
+            }
+        }
+
+        /**
+         * Record the move of the current ply
+         */
+        private void record(long move) {
+            int entry = entry(move, ply);
+            if (stamp[entry] != simulation) {
+                stamp[entry] = simulation;
+                firstPly[entry] = ply;
+            }
+            ply++;
+        }
+
+        /**
+         * The index in the table of a move played at a ply
+         */
+        private int entry(long move, int ply) {
+            int hash = (int) ((move * 0x9E3779B97F4A7C15L) >>> (64 - AMAF_TABLE_BITS));
+            return (hash & ~1) | (ply & 1);
+        }
+
+        @Override
+        public long nextMove(Game game, RandomGenerator random) {
+            long move = policy.nextMove(game, random);
+            if (move != 0)
+                record(move);
+            return move;
+        }
+
+        /**
+         * Every child of a node of the path whose move is played later in the simulation by the same player,
+         * and not before, gets the result of the simulation
+         */
+        @Override
+        public void playoutEnded(double valueOne) {
+            policy.playoutEnded(valueOne);
+            double value = rootIsOne ? valueOne : 1 - valueOne;
+            for (int j = 0; j < worker.nbVisited; j++) {
+                int first = firstChild[j];
+                if (first == NodeStore.NONE)
+                    continue;
+                for (int child = first, end = first + tree.nbChildren(worker.visited[j]); child < end; child++) {
+                    int entry = entry(tree.move(child), j);
+                    if (stamp[entry] == simulation && firstPly[entry] >= j) {
+                        counts[offset[j] + child - first]++;
+                        wins[offset[j] + child - first] += value;
+                    }
+                }
+            }
+            startSimulation();
+        }
+
+        @Override
+        public void treeMoveResults(Game game, long move, int n, double wins) {
+            policy.treeMoveResults(game, move, n, wins);
+        }
+
+        /**
+         * Add the AMAF statistics of the step to the nodes
+         */
+        void end() {
+            for (int j = 0; j < worker.nbVisited; j++) {
+                int first = firstChild[j];
+                if (first == NodeStore.NONE)
+                    continue;
+                for (int child = first, end = first + tree.nbChildren(worker.visited[j]); child < end; child++) {
+                    int k = offset[j] + child - first;
+                    if (counts[k] > 0)
+                        tree.addAmaf(child, counts[k], wins[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The worker of single-threaded searches, walking on the root game state
+     */
+    private final Worker mainWorker;
+
+    /**
+     * Set when a thread of a parallel search finds there is no need for further exploration
+     */
+    private volatile boolean stopSearch;
+
+    /**
+     * Steps share the tree, removing subtrees to make room needs it exclusively
+     */
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+
+    /**
+     * Set when a node could not be expanded because the node budget is reached
+     */
+    private volatile boolean treeFull;
+
+    /**
+     * Set by {@link #requestStop()} to end the searches before their time limit
+     */
+    private volatile boolean stopRequested;
+
+    /**
+     * The threads running the rollouts of a MCTS step in parallel (leaf parallelization), or null
+     */
+    private ForkJoinPool rolloutPool;
+
+    /**
+     * The statistics shared by the nodes of the same position, or null to use the statistics of each node
+     */
+    TranspositionTable transpositions;
+
+    /**
+     * Whether the children of a node are opened one per visit instead of all at once
+     */
+    private boolean lazyExpansion;
+
+    /**
+     * The coefficient of progressive widening for lazy expansion (0 to open all children)
+     */
+    private double wideningCoefficient;
+
+    /**
+     * The maximum number of moves of a rollout before its position is evaluated, 0 to play to the end
+     */
+    private int rolloutDepth;
+
+    /**
+     * The choice of the moves of the rollouts
+     */
+    private PlayoutPolicy playoutPolicy = PlayoutPolicy.UNIFORM;
+
+    /**
+     * The equivalence parameter of the RAVE schedule, 0 without RAVE
+     */
+    private double raveEquivalence;
+
+    /**
+     * The tree policy choosing the children to walk down to
+     */
+    private SelectionPolicy selectionPolicy = SelectionPolicy.ucb1(1 / Math.sqrt(2));
+
+    /**
+     * The rule choosing the move to play once the search is over
+     */
+    private FinalSelection finalSelection = FinalSelection.ROBUST_CHILD;
+
+    /**
+     * The rules choosing the move to play among the children of the root once the search is over
+     */
+    public enum FinalSelection {
+        /**
+         * The most simulated child: the tree policy spends its simulations on the best moves,
+         * and the count is less noisy than the score of the children simulated a few times
+         */
+        ROBUST_CHILD,
+        /**
+         * The child with the best score
+         */
+        MAX_CHILD
+    }
 
 
     /**
@@ -203,8 +495,221 @@ public class MonteCarloTreeSearch {
      * @param game
      */
     public MonteCarloTreeSearch(Game game) {
-        root = new EvalNode(game.clone());
+        this(game, new SplittableRandom());
+    }
+
+    /**
+     * Constructor with a given random number stream (e.g. one per tree when several trees are searched in parallel)
+     *
+     * @param game
+     * @param random The random number generator of the rollouts. It must not be used by other threads.
+     */
+    public MonteCarloTreeSearch(Game game, RandomGenerator random) {
+        this(game, random, defaultTreeBytes());
+    }
+
+    /**
+     * Constructor with a given random number stream and a memory budget for the tree.
+     * When the budget is reached, rarely visited subtrees are removed to make room for new nodes.
+     *
+     * @param game
+     * @param random       The random number generator of the rollouts. It must not be used by other threads.
+     * @param maxTreeBytes The maximum memory used by the tree nodes and the transposition table, in bytes
+     */
+    public MonteCarloTreeSearch(Game game, RandomGenerator random, long maxTreeBytes) {
+        this.game = game.clone();
+        this.random = random;
+        this.maxTreeBytes = maxTreeBytes;
+        createTree();
         nTotal = 0;
+        mainWorker = new Worker(this.game, moves, random, 0);
+    }
+
+    /**
+     * Expand the tree lazily: the moves of a node are generated once when it is first reached, but its children
+     * are opened one per visit, in the order of the moves, and each new child is simulated instead of its parent.
+     * With progressive widening, a node visited in <code>k</code> steps has at most
+     * <code>1 + wideningCoefficient * sqrt(k)</code> children open, which keeps the search deep in positions
+     * with many moves (e.g. king endgames).
+     *
+     * @param lazy                <code>true</code> for lazy expansion, <code>false</code> to create and
+     *                            simulate all the children of a node at once (default)
+     * @param wideningCoefficient The coefficient of progressive widening, or 0 to open every child
+     */
+    public void setLazyExpansion(boolean lazy, double wideningCoefficient) {
+        this.lazyExpansion = lazy;
+        this.wideningCoefficient = wideningCoefficient;
+    }
+
+    /**
+     * Share the statistics of the nodes reaching the same position through different move orders.
+     * The value of a move is then estimated by the statistics of its position, from all the paths,
+     * while its exploration term uses the number of simulations through the move itself (edge visit count).
+     * The table takes at most half of the memory budget of the tree, and the nodes store their position hash,
+     * so there is room for fewer nodes. Must be called before the search.
+     *
+     * @param capacity The number of positions in the table (a power of 2), or 0 to disable transpositions
+     */
+    public void setTranspositions(int capacity) {
+        transpositions = capacity <= 0 ? null
+                : new TranspositionTable(Math.min(capacity, TranspositionTable.capacityForBytes(maxTreeBytes / 2)));
+        createTree();
+    }
+
+    /**
+     * Create an empty tree for the options of the search: the nodes fit in the memory budget
+     * left by the transposition table, with the size of the nodes storing what the options need
+     */
+    private void createTree() {
+        boolean withKeys = transpositions != null;
+        boolean withAmaf = raveEquivalence > 0;
+        boolean withPriors = selectionPolicy.usesPriors();
+        long nodeBytes = maxTreeBytes - (withKeys ? transpositions.memoryBytes() : 0);
+        tree = new NodeStore(NodeStore.nodesForBytes(nodeBytes, withKeys, withAmaf, withPriors),
+                withKeys, withAmaf, withPriors);
+        if (withKeys)
+            tree.setKey(NodeStore.ROOT, game.positionKey());
+    }
+
+    /**
+     * Cut the rollouts after a number of moves and score the reached position with the static evaluation
+     * of the game ({@link Game#evaluate()}), which counts as a fractional win.
+     * Rollouts are much shorter when kings wander around the board, so more of them fit in the time limit.
+     *
+     * @param maxPlies The maximum number of moves of a rollout, or 0 to play the rollouts to the end of the game
+     */
+    public void setRolloutDepth(int maxPlies) {
+        this.rolloutDepth = Math.max(maxPlies, 0);
+    }
+
+    /**
+     * Choose the moves of the rollouts with a playout policy instead of uniformly at random, e.g.
+     * {@link PlayoutPolicy#HEURISTIC} to avoid the moves giving a piece away, which makes the playouts less noisy.
+     *
+     * @param policy The playout policy, shared by the threads of parallel searches
+     */
+    public void setPlayoutPolicy(PlayoutPolicy policy) {
+        this.playoutPolicy = policy;
+    }
+
+    /**
+     * Blend all-moves-as-first (AMAF) statistics into the selection (Rapid Action Value Estimation, RAVE):
+     * each node also counts the simulations through its parent in which its move was played later by the same
+     * player, so that the moves of a simulation inform their siblings, and new nodes get a value quickly.
+     * A child with <code>n</code> simulations is scored by <code>(1 - beta) * score + beta * amafScore</code>,
+     * with <code>beta = sqrt(k / (3n + k))</code>: AMAF statistics prevail at first, and fade out as
+     * <code>n</code> grows past <code>k</code>.
+     * The moves of the rollouts are not recorded when they run on a pool of threads ({@link #setRolloutPool}).
+     * The nodes store the AMAF statistics, so there is room for fewer nodes. Must be called before the search.
+     *
+     * @param equivalence The equivalence parameter <code>k</code> (in simulations), or 0 to disable RAVE
+     */
+    public void setRave(double equivalence) {
+        raveEquivalence = Math.max(equivalence, 0);
+        createTree();
+    }
+
+    /**
+     * Choose the tree policy, e.g. {@link SelectionPolicy#puct} to search first the moves favoured by the game
+     * knowledge ({@link Game#moveWeight(long)}). The default is UCB1 with <code>c = 1/sqrt(2)</code>.
+     * The priors of a policy using them are computed once per node, when it is expanded, and stored in the nodes,
+     * so there is room for fewer nodes. Must be called before the search.
+     *
+     * @param policy The selection policy
+     */
+    public void setSelectionPolicy(SelectionPolicy policy) {
+        boolean priorsChanged = policy.usesPriors() != selectionPolicy.usesPriors();
+        this.selectionPolicy = policy;
+        if (priorsChanged)
+            createTree();
+    }
+
+    /**
+     * Choose the rule selecting the move to play once the search is over. The default is
+     * {@link FinalSelection#ROBUST_CHILD}.
+     *
+     * @param finalSelection The final selection rule
+     */
+    public void setFinalSelection(FinalSelection finalSelection) {
+        this.finalSelection = finalSelection;
+    }
+
+    /**
+     * Ask the running search to stop (from another thread), e.g. to end pondering.
+     * Searches stop after their current step, and no search runs until {@link #clearStopRequest()} is called.
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Allow searches again after {@link #requestStop()}, once the stopped search has returned
+     */
+    public void clearStopRequest() {
+        stopRequested = false;
+    }
+
+    /**
+     * The default memory budget of a tree: a quarter of the maximum heap size
+     *
+     * @return The budget in bytes
+     */
+    static long defaultTreeBytes() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Run the rollouts of each MCTS step in parallel on the given pool (leaf parallelization)
+     *
+     * @param rolloutPool The threads running the rollouts, or null to run them on the searching thread
+     */
+    public void setRolloutPool(ForkJoinPool rolloutPool) {
+        this.rolloutPool = rolloutPool;
+    }
+
+    /**
+     * "Score" of a node, i.e estimated probability of winning when moving to this node
+     *
+     * @param node The node
+     * @return Estimated probability of win for the node
+     */
+    double score(int node) {
+        return tree.w(node) / tree.n(node);
+    }
+
+    /**
+     * Merge the root statistics of several trees searched from the same game state (root parallelization).
+     * The result is a one-level tree whose root children hold the sums of the statistics of the
+     * matching children of all the trees, to select the best move with {@link #getBestMove()}.
+     *
+     * @param trees Trees searched from the same game state
+     * @return The merged tree
+     */
+    static MonteCarloTreeSearch merge(MonteCarloTreeSearch[] trees) {
+        MonteCarloTreeSearch merged = new MonteCarloTreeSearch(trees[0].game);
+        merged.finalSelection = trees[0].finalSelection;
+        HashMap<Long, Integer> children = new HashMap<>();
+        merged.game.possibleMoves(merged.moves);
+        merged.tree.expand(NodeStore.ROOT, merged.moves);
+        int first = merged.tree.firstChild(NodeStore.ROOT);
+        for (int i = 0; i < merged.moves.size(); i++) {
+            children.put(merged.tree.move(first + i), first + i);
+        }
+        for (MonteCarloTreeSearch mcts : trees) {
+            NodeStore tree = mcts.tree;
+            merged.tree.addStats(NodeStore.ROOT, tree.n(NodeStore.ROOT), tree.w(NodeStore.ROOT));
+            merged.nTotal += mcts.nTotal;
+            int child = tree.firstChild(NodeStore.ROOT);
+            if (child == NodeStore.NONE)
+                continue;
+            for (int end = child + tree.nbChildren(NodeStore.ROOT); child < end; child++) {
+                int mergedChild = children.get(tree.move(child));
+                merged.tree.addStats(mergedChild, tree.n(child), tree.w(child));
+                if (tree.proven(child) != NodeStore.UNPROVEN)
+                    merged.tree.setProven(mergedChild, tree.proven(child));
+            }
+        }
+        return merged;
     }
 
     /**
@@ -214,44 +719,143 @@ public class MonteCarloTreeSearch {
      * @return The PlayerId of the winner (or NONE if equality or timeout).
      */
     static PlayerId playRandomlyToEnd(Game game) {
-
-        Player player1 = new PlayerRandom();
-        Player player2 = new PlayerRandom();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
 
         while (game.winner() == null) {
+            // Same as a PlayerRandom for each player, without building Move objects
+            long move = game.randomMove(random);
+            if (move == 0) {
+                return game.player().other();
+            }
+            game.play(move);
+        }
+        return game.winner();
+    }
 
-            Move move = null;
-            switch (game.player()) {
-                case ONE:
-                    move = player1.play(game);
-                    break;
-                case TWO:
-                    move = player2.play(game);
-                    break;
-                default:
-                    move = null;
+    /**
+     * Perform a single random playing rollout from the given game state, and undo it
+     *
+     * @param game   Initial game state. {@code game} is restored to this state when the function returns.
+     * @param random The random number generator to use
+     * @return The PlayerId of the winner (or NONE if equality or timeout).
+     */
+    static PlayerId playRandomlyAndUndo(Game game, RandomGenerator random) {
+        return playRandomlyAndUndo(game, random, PlayoutPolicy.UNIFORM);
+    }
+
+    /**
+     * Perform a single rollout from the given game state with the moves of a playout policy, and undo it
+     *
+     * @param game   Initial game state. {@code game} is restored to this state when the function returns.
+     * @param random The random number generator to use
+     * @param policy The choice of the moves
+     * @return The PlayerId of the winner (or NONE if equality or timeout).
+     */
+    static PlayerId playRandomlyAndUndo(Game game, RandomGenerator random, PlayoutPolicy policy) {
+        int nbPlies = 0;
+        PlayerId winner;
+
+        while ((winner = game.winner()) == null) {
+            long move = policy.nextMove(game, random);
+            if (move == 0) {
+                winner = game.player().other();
+                break;
             }
+            game.play(move);
+            nbPlies++;
+        }
+        policy.playoutEnded(valueOfPlayerOne(winner));
+        for (; nbPlies > 0; nbPlies--) {
+            game.undo();
+        }
+        return winner;
+    }
 
-            if (move == null) {
-                if (game.player() == PlayerId.ONE) return PlayerId.TWO;
-                if (game.player() == PlayerId.TWO) return PlayerId.ONE;
+    /**
+     * Perform a random playing rollout of at most <code>maxPlies</code> moves from the given game state, and undo it.
+     * If the game is not over after <code>maxPlies</code> moves, the reached position is scored by the
+     * static evaluation of the game.
+     *
+     * @param game     Initial game state. {@code game} is restored to this state when the function returns.
+     * @param random   The random number generator to use
+     * @param policy   The choice of the moves
+     * @param maxPlies The maximum number of moves to play
+     * @return The value of the rollout for {@link PlayerId#ONE}: 1 for a win, 0 for a loss, 0.5 for an equality,
+     * or the estimated probability of a win if the rollout was cut
+     */
+    static double playRandomlyAndEvaluate(Game game, RandomGenerator random, PlayoutPolicy policy, int maxPlies) {
+        int nbPlies = 0;
+        PlayerId winner;
+
+        while ((winner = game.winner()) == null && nbPlies < maxPlies) {
+            long move = policy.nextMove(game, random);
+            if (move == 0) {
+                winner = game.player().other();
+                break;
             }
             game.play(move);
+            nbPlies++;
         }
-        return game.winner();
+        double value = winner == null ? game.evaluate() : valueOfPlayerOne(winner);
+        policy.playoutEnded(value);
+        for (; nbPlies > 0; nbPlies--) {
+            game.undo();
+        }
+        return value;
+    }
+
+    /**
+     * The value of the end of a game for player 1
+     *
+     * @param winner The winner
+     * @return 1 if {@link PlayerId#ONE} wins, 0 if {@link PlayerId#TWO} wins, 0.5 for an equality
+     */
+    private static double valueOfPlayerOne(PlayerId winner) {
+        return winner == PlayerId.ONE ? 1.0 : winner == PlayerId.TWO ? 0.0 : 0.5;
     }
 
     /**
      * Perform nbRuns rollouts from a game state, and returns the winning statistics for both players.
      *
-     * @param game   The initial game state to start with (not modified by the function)
+     * @param game   The initial game state to start with (restored when the function returns)
      * @param nbRuns The number of playouts to perform
      * @return A RolloutResults object containing the number of wins for each player and the number of simulations
      */
     static RolloutResults rollOut(final Game game, int nbRuns) {
+        return rollOut(game, nbRuns, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Perform nbRuns rollouts from a game state with a given random number generator.
+     *
+     * @param game   The initial game state to start with (restored when the function returns)
+     * @param nbRuns The number of playouts to perform
+     * @param random The random number generator to use
+     * @return A RolloutResults object containing the number of wins for each player and the number of simulations
+     */
+    static RolloutResults rollOut(final Game game, int nbRuns, RandomGenerator random) {
+        return rollOut(game, nbRuns, random, PlayoutPolicy.UNIFORM, 0);
+    }
+
+    /**
+     * Perform nbRuns rollouts from a game state with a given random number generator and playout policy,
+     * cut after <code>maxPlies</code> moves.
+     *
+     * @param game     The initial game state to start with (restored when the function returns)
+     * @param nbRuns   The number of playouts to perform
+     * @param random   The random number generator to use
+     * @param policy   The choice of the moves of the playouts
+     * @param maxPlies The maximum number of moves of a rollout, or 0 to play to the end of the game
+     * @return A RolloutResults object containing the number of wins for each player and the number of simulations
+     */
+    static RolloutResults rollOut(final Game game, int nbRuns, RandomGenerator random, PlayoutPolicy policy,
+                                  int maxPlies) {
         RolloutResults rollOut = new RolloutResults();
         for (int i = 0; i < nbRuns; i++) {
-            rollOut.update(playRandomlyToEnd(game.clone()));
+            if (maxPlies > 0)
+                rollOut.update(playRandomlyAndEvaluate(game, random, policy, maxPlies));
+            else
+                rollOut.update(playRandomlyAndUndo(game, random, policy));
         }
         //System.out.println("n : " + rollOut.n);
         //System.out.println("win 1 : " + rollOut.win1);
@@ -259,6 +863,78 @@ public class MonteCarloTreeSearch {
         return rollOut;
     }
 
+    /**
+     * Perform nbRuns rollouts from a game state, split across the threads of a fork/join pool.
+     * Each part of the batch runs on its own copy of the game with its own random stream,
+     * and the partial results are summed.
+     *
+     * @param game   The initial game state to start with (restored when the function returns)
+     * @param nbRuns The number of playouts to perform
+     * @param random The random number generator seeding the random streams of the parts
+     * @param pool   The threads to use
+     * @return A RolloutResults object containing the number of wins for each player and the number of simulations
+     */
+    static RolloutResults rollOut(final Game game, int nbRuns, RandomGenerator random, ForkJoinPool pool) {
+        return rollOut(game, nbRuns, random, pool, PlayoutPolicy.UNIFORM, 0);
+    }
+
+    /**
+     * Perform nbRuns rollouts with a playout policy, cut after <code>maxPlies</code> moves, from a game state,
+     * split across the threads of a fork/join pool.
+     *
+     * @param game     The initial game state to start with (restored when the function returns)
+     * @param nbRuns   The number of playouts to perform
+     * @param random   The random number generator seeding the random streams of the parts
+     * @param pool     The threads to use
+     * @param policy   The choice of the moves of the playouts
+     * @param maxPlies The maximum number of moves of a rollout, or 0 to play to the end of the game
+     * @return A RolloutResults object containing the number of wins for each player and the number of simulations
+     */
+    static RolloutResults rollOut(final Game game, int nbRuns, RandomGenerator random, ForkJoinPool pool,
+                                  PlayoutPolicy policy, int maxPlies) {
+        int minRuns = Math.max(1, nbRuns / pool.getParallelism());
+        return pool.invoke(new ParallelRollOut(game, nbRuns, minRuns, policy, maxPlies,
+                new SplittableRandom(random.nextLong())));
+    }
+
+    /**
+     * A batch of rollouts, recursively split in halves until the parts are small enough
+     */
+    private static final class ParallelRollOut extends RecursiveTask<RolloutResults> {
+        private static final long serialVersionUID = 4906722873181474105L;
+
+        private final Game game;
+        private final int nbRuns;
+        private final int minRuns;
+        private final PlayoutPolicy policy;
+        private final int maxPlies;
+        private final SplittableRandom random;
+
+        ParallelRollOut(Game game, int nbRuns, int minRuns, PlayoutPolicy policy, int maxPlies,
+                        SplittableRandom random) {
+            this.game = game;
+            this.nbRuns = nbRuns;
+            this.minRuns = minRuns;
+            this.policy = policy;
+            this.maxPlies = maxPlies;
+            this.random = random;
+        }
+
+        @Override
+        protected RolloutResults compute() {
+            if (nbRuns < 2 * minRuns) {
+                return rollOut(game, nbRuns, random, policy, maxPlies);
+            }
+            // The forked half works on a copy, this thread keeps the game it was given
+            int half = nbRuns / 2;
+            ParallelRollOut other = new ParallelRollOut(game.clone(), half, minRuns, policy, maxPlies, random.split());
+            other.fork();
+            RolloutResults res = new ParallelRollOut(game, nbRuns - half, minRuns, policy, maxPlies, random).compute();
+            res.add(other.join());
+            return res;
+        }
+    }
+
     /**
      * Apply the MCTS algorithm during at most <code>timeLimitMillis</code> milliseconds to compute
      * the MCTS tree statistics.
@@ -266,11 +942,42 @@ public class MonteCarloTreeSearch {
      * @param timeLimitMillis Computation time limit in milliseconds
      */
     public void evaluateTreeWithTimeLimit(int timeLimitMillis) {
+        evaluateTreeWithTimeLimit(timeLimitMillis, null, 1);
+    }
+
+    /**
+     * Apply the MCTS algorithm during at most <code>timeLimitMillis</code> milliseconds to compute
+     * the MCTS tree statistics, with several threads sharing the tree.
+     *
+     * @param timeLimitMillis Computation time limit in milliseconds
+     * @param pool            The threads to use (may be null if <code>nbThreads</code> is 1)
+     * @param nbThreads       The number of threads searching the tree
+     */
+    public void evaluateTreeWithTimeLimit(int timeLimitMillis, ExecutorService pool, int nbThreads) {
+        int nBefore = nTotal;
+        long elapsedMillis = searchWithTimeLimit(timeLimitMillis, pool, nbThreads);
+
+        // Print some statistics
+        System.out.println("Stopped search " + (nbThreads > 1 ? "on " + nbThreads + " threads " : "") + "after "
+                + elapsedMillis + " ms. "
+                + "Root stats is " + tree.w(NodeStore.ROOT) + "/" + tree.n(NodeStore.ROOT)
+                + String.format(" (%.2f%% loss)", 100.0 * tree.w(NodeStore.ROOT) / tree.n(NodeStore.ROOT))
+                + String.format(", %.0f playouts/s", 1000.0 * (nTotal - nBefore) / Math.max(elapsedMillis, 1))
+                + (tree.proven(NodeStore.ROOT) != NodeStore.UNPROVEN ? ", position solved" : ""));
+    }
+
+    /**
+     * Apply the MCTS algorithm during at most <code>timeLimitMillis</code> milliseconds, without printing anything.
+     *
+     * @param timeLimitMillis Computation time limit in milliseconds
+     * @return The actual computation time in milliseconds
+     */
+    long searchWithTimeLimit(int timeLimitMillis) {
         // Record function entry time
         long startTime = System.nanoTime();
 
         // Evaluate the tree until timeout
-        while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < timeLimitMillis) {
+        while (!stopRequested && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < timeLimitMillis) {
             // Perform one MCTS step
             boolean canStop = evaluateTreeOnce();
             // Stop evaluating the tree if there is nothing more to explore
@@ -279,10 +986,49 @@ public class MonteCarloTreeSearch {
             }
         }
 
-        // Print some statistics
-        System.out.println("Stopped search after "
-                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms. "
-                + "Root stats is " + root.w + "/" + root.n + String.format(" (%.2f%% loss)", 100.0 * root.w / root.n));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Apply the MCTS algorithm during at most <code>timeLimitMillis</code> milliseconds with several threads
+     * sharing the tree (tree parallelization), without printing anything.
+     * Each thread walks its own copy of the root game state, and virtual loss spreads the threads over the tree.
+     *
+     * @param timeLimitMillis Computation time limit in milliseconds
+     * @param pool            The threads to use (may be null if <code>nbThreads</code> is 1)
+     * @param nbThreads       The number of threads searching the tree
+     * @return The actual computation time in milliseconds
+     */
+    long searchWithTimeLimit(int timeLimitMillis, ExecutorService pool, int nbThreads) {
+        if (nbThreads <= 1)
+            return searchWithTimeLimit(timeLimitMillis);
+
+        long startTime = System.nanoTime();
+        stopSearch = false;
+        List<Callable<Void>> searches = new ArrayList<>();
+        for (int i = 0; i < nbThreads; i++) {
+            Worker worker = new Worker(game.clone(), new MoveBuffer(), new SplittableRandom(random.nextLong()),
+                    NB_ROLLOUTS_PER_STEP);
+            searches.add(() -> {
+                while (!stopSearch && !stopRequested
+                        && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < timeLimitMillis) {
+                    if (evaluateTreeOnce(worker)) {
+                        stopSearch = true;
+                    }
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> search : pool.invokeAll(searches)) {
+                search.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
     }
 
     /**
@@ -291,81 +1037,439 @@ public class MonteCarloTreeSearch {
      * @return <code>true</code> if there is no need for further exploration (to speed up end of games).
      */
     public boolean evaluateTreeOnce() {
-        // List of visited nodes
-        List<EvalNode> visited = new ArrayList<>();
+        return evaluateTreeOnce(mainWorker);
+    }
+
+    /**
+     * Perform one MCTS step with a given worker, then make room in the tree if it is full
+     *
+     * @param worker The state of the calling thread
+     * @return <code>true</code> if there is no need for further exploration (to speed up end of games).
+     */
+    private boolean evaluateTreeOnce(Worker worker) {
+        boolean canStop;
+        treeLock.readLock().lock();
+        try {
+            canStop = searchStep(worker);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+        if (treeFull) {
+            collapseRarelyVisited();
+        }
+        return canStop;
+    }
+
+    /**
+     * Remove the least visited subtrees until a quarter of the node budget is free.
+     * Collapsed nodes keep their statistics and are expanded again if the search comes back to them.
+     */
+    private void collapseRarelyVisited() {
+        treeLock.writeLock().lock();
+        try {
+            // Another thread may have made room already
+            if (!treeFull)
+                return;
+            int target = tree.maxNodes() - tree.maxNodes() / 4;
+            long maxThreshold = 2L * tree.n(NodeStore.ROOT);
+            for (long threshold = NB_ROLLOUTS_PER_STEP; tree.liveNodes() > target && threshold <= maxThreshold;
+                 threshold *= 2) {
+                collapseRarelyVisited(NodeStore.ROOT, threshold);
+            }
+            treeFull = false;
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Collapse the expanded descendants of a node whose number of simulations is at most <code>threshold</code>
+     *
+     * @param node      The node whose subtree is cleaned
+     * @param threshold The number of simulations
+     */
+    private void collapseRarelyVisited(int node, long threshold) {
+        int first = tree.firstChild(node);
+        for (int child = first, end = first + tree.nbChildren(node); child < end; child++) {
+            if (tree.firstChild(child) == NodeStore.NONE)
+                continue;
+            if (tree.n(child) <= threshold) {
+                tree.collapse(child);
+            } else {
+                collapseRarelyVisited(child, threshold);
+            }
+        }
+    }
+
+    /**
+     * Perform one MCTS step with a given worker. Several workers can run steps at the same time on the tree.
+     *
+     * @param worker The state of the calling thread
+     * @return <code>true</code> if there is no need for further exploration (to speed up end of games).
+     */
+    private boolean searchStep(Worker worker) {
+        Game game = worker.game;
+
+        // Nothing to search once the value of the root is proven
+        if (tree.proven(NodeStore.ROOT) != NodeStore.UNPROVEN) {
+            return true;
+        }
 
         // Start from the root
-        EvalNode node = root;
-        visited.add(node);
-
-        // Selection (with UCT tree policy)
-        while (node.children.size() > 0) {
-            int N = node.n;
-            double c = 1 / Math.sqrt(2);
-            double max = 0;
-            double uct = 0;
-            EvalNode currChild;
-            EvalNode bestChild = node.children.get(0);
-
-            for (int i = 0; i < node.children.size(); i++) {
-                currChild = node.children.get(i);
-                uct = (currChild.w / currChild.n) + c * Math.sqrt(Math.log(N) / currChild.n);
-                if (uct > max) {
-                    max = uct;
-                    bestChild = currChild;
+        int node = NodeStore.ROOT;
+        worker.nbVisited = 0;
+        visit(worker, node);
+
+        // Selection (with the tree policy)
+        int first;
+        boolean opened = false;
+        while (!opened && (first = tree.firstChild(node)) != NodeStore.NONE) {
+            int end = first + tree.nbChildren(node);
+            int nbOpened = end - first;
+            if (lazyExpansion) {
+                // Open the next untried child if the widening allows it, and simulate from it
+                nbOpened = tree.nbOpened(node);
+                if (first + nbOpened < end && nbOpened < maxOpenedChildren(node) && tree.open(node, nbOpened)) {
+                    node = first + nbOpened;
+                    game.play(tree.move(node));
+                    visit(worker, node);
+                    opened = true;
+                    continue;
+                }
+                nbOpened = tree.nbOpened(node);
+            }
+
+            int N = tree.n(node) + tree.virtualLoss(node);
+            if (transpositions != null) {
+                // Simulations through the position, from all paths
+                int entry = transpositions.find(worker.keys[worker.nbVisited - 1]);
+                if (entry >= 0)
+                    N = Math.max(N, transpositions.n(entry) + tree.virtualLoss(node));
+            }
+            SelectionPolicy policy = selectionPolicy;
+            double parentTerm = policy.parentTerm(Math.max(N, 1));
+            boolean usesPriors = policy.usesPriors();
+            // The scores are those of the player of the root: the opponent, who moves at odd depths,
+            // chooses with the complement
+            boolean rootMoves = worker.nbVisited % 2 == 1;
+            double base = rootMoves ? 0 : 1;
+            double sign = rootMoves ? 1 : -1;
+            PlayerId rootPlayer = rootMoves ? game.player() : game.player().other();
+            double max = Double.NEGATIVE_INFINITY;
+            int bestChild = NodeStore.NONE;
+
+            for (int child = first; child < first + nbOpened; child++) {
+                // Solved children are not searched any more
+                if (tree.proven(child) != NodeStore.UNPROVEN)
+                    continue;
+                int n = tree.n(child) + tree.virtualLoss(child);
+                double prior = usesPriors ? tree.prior(child) : 0;
+                double value;
+                if (n == 0) {
+                    // Children never visited (even virtually)
+                    value = policy.unvisitedValue(parentTerm, prior);
+                } else {
+                    double score = tree.w(child) / n;
+                    if (transpositions != null)
+                        score = transpositionScore(child, score, rootPlayer);
+                    if (raveEquivalence > 0)
+                        score = raveScore(child, n, score);
+                    value = policy.value(parentTerm, base + sign * score, n, prior);
+                }
+                if (value > max) {
+                    max = value;
+                    bestChild = child;
                 }
             }
+
+            if (bestChild == NodeStore.NONE) {
+                // All the open children are solved: open another one, or the node is solved too
+                if (first + nbOpened < end) {
+                    if (tree.open(node, nbOpened)) {
+                        node = first + nbOpened;
+                        game.play(tree.move(node));
+                        visit(worker, node);
+                        opened = true;
+                    }
+                    continue;
+                }
+                tree.setProven(node, provenFromChildren(node));
+                break;
+            }
             node = bestChild;
-            visited.add(node);
+            game.play(tree.move(node));
+            visit(worker, node);
         }
 
-        // Expand node
-        if (node.game.winner() != null) {
-            return true;
-        }
+        PlayerId winner = game.winner();
+        if (winner != null) {
+            // Terminal node: its value is proven (the root is solved if the game is over).
+            // With transpositions, a draw by the king moves counter is not: it depends on the path to the position.
+            PlayerId mover = game.player().other();
+            if (winner != PlayerId.NONE || transpositions == null)
+                tree.setProven(node, winner == mover ? NodeStore.PROVEN_WIN
+                        : winner == PlayerId.NONE ? NodeStore.PROVEN_DRAW : NodeStore.PROVEN_LOSS);
+        } else if (!opened && tree.proven(node) == NodeStore.UNPROVEN) {
+            // Expand node
+            // Publish the children, unless another thread expanded the node in the meantime
+            MoveBuffer moves = worker.moves;
+            game.possibleMoves(moves);
+            double[] priors = selectionPolicy.usesPriors() ? priors(worker, moves) : null;
+            if (!moves.isEmpty() && !tree.expand(node, moves, priors) && tree.nbChildren(node) == 0) {
+                // No room left: simulate from the leaf anyway, the tree is cleaned after the step
+                treeFull = true;
+            }
 
-        Game childGame;
+            // With lazy expansion, only the first child is created and simulated
+            if (lazyExpansion && (first = tree.firstChild(node)) != NodeStore.NONE && tree.open(node, 0)) {
+                node = first;
+                game.play(tree.move(node));
+                visit(worker, node);
+            }
+        }
 
-        for (Move move :
-                node.game.possibleMoves()) {
-            childGame = node.game.clone();
-            childGame.play(move);
-            node.children.add(new EvalNode(childGame));
+        // Simulate from new node(s), recording the moves of the simulations for RAVE
+        PlayoutPolicy policy = playoutPolicy;
+        if (raveEquivalence > 0 && rolloutPool == null) {
+            if (worker.amaf == null)
+                worker.amaf = new AmafRecorder(worker);
+            worker.amaf.begin(playoutPolicy, game);
+            policy = worker.amaf;
         }
+        RolloutResults res = rolloutPool == null
+                ? rollOut(game, NB_ROLLOUTS_PER_STEP, worker.random, policy, rolloutDepth)
+                : rollOut(game, NB_ROLLOUTS_PER_STEP, worker.random, rolloutPool, policy, rolloutDepth);
+        N_TOTAL.getAndAdd(this, res.n);
+        if (policy != playoutPolicy)
+            worker.amaf.end();
 
-        // Simulate from new node(s)
-        RolloutResults res = rollOut(node.game, 100);
+        // Walk back to the root state, the playout policy learns from the moves of the tree
+        for (int i = worker.nbVisited - 1; i > 0; i--) {
+            game.undo();
+            playoutPolicy.treeMoveResults(game, tree.move(worker.visited[i]), res.n, res.nbWins(game.player()));
+        }
 
-        // Backpropagate results
-        for (EvalNode n :
-                visited) {
-            n.n += res.n;
-            n.w += res.nbWins(root.game.player());
+        // Backpropagate results, and proven values as long as they prove the parent
+        double wins = res.nbWins(game.player());
+        if (transpositions != null) {
+            // Positions count the wins of the first player, which do not depend on the root
+            double winsOne = res.nbWins(PlayerId.ONE);
+            for (int i = 0; i < worker.nbVisited; i++) {
+                transpositions.addStats(worker.keys[i], res.n, winsOne);
+            }
+        }
+        boolean proving = true;
+        for (int i = worker.nbVisited - 1; i >= 0; i--) {
+            int visited = worker.visited[i];
+            if (proving && i < worker.nbVisited - 1 && tree.proven(visited) == NodeStore.UNPROVEN) {
+                byte value = provenFromChildren(visited);
+                tree.setProven(visited, value);
+                proving = value != NodeStore.UNPROVEN;
+            }
+            proving &= tree.proven(visited) != NodeStore.UNPROVEN;
+            tree.addStats(visited, res.n, wins);
+            tree.addVirtualLoss(visited, -worker.virtualLoss);
         }
 
         // Return false if tree evaluation should continue
+        return tree.proven(NodeStore.ROOT) != NodeStore.UNPROVEN || (winner != null && node == NodeStore.ROOT);
+    }
+
+    /**
+     * The prior probabilities of the moves of a node being expanded, proportional to the weights of the moves
+     * ({@link Game#moveWeight(long)})
+     *
+     * @param worker The worker expanding the node, its game in the state of the node
+     * @param moves  The moves of the node
+     * @return The priors, in the order of the moves, in the scratch array of the worker
+     */
+    private double[] priors(Worker worker, MoveBuffer moves) {
+        int count = moves.size();
+        if (worker.priors.length < count)
+            worker.priors = new double[Math.max(count, 2 * worker.priors.length)];
+        double[] priors = worker.priors;
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            priors[i] = worker.game.moveWeight(moves.get(i));
+            total += priors[i];
+        }
+        for (int i = 0; i < count; i++) {
+            priors[i] = total > 0 ? priors[i] / total : 1.0 / count;
+        }
+        return priors;
+    }
+
+    /**
+     * The score of a node from the statistics of its position, shared by all the paths reaching it.
+     * Like the statistics of the nodes, it is the estimated probability of winning of the player of the root.
+     *
+     * @param child      The node
+     * @param nodeScore  The score from the statistics of the node, used if its position is not in the table
+     * @param rootPlayer The player of the root
+     * @return The score of the node
+     */
+    private double transpositionScore(int child, double nodeScore, PlayerId rootPlayer) {
+        long key = tree.key(child);
+        if (key == 0)
+            return nodeScore;
+        int entry = transpositions.find(key);
+        if (entry < 0 || transpositions.n(entry) == 0)
+            return nodeScore;
+        double winsOne = transpositions.w(entry) / transpositions.n(entry);
+        return rootPlayer == PlayerId.ONE ? winsOne : 1 - winsOne;
+    }
+
+    /**
+     * The score of a node blended with its all-moves-as-first statistics (RAVE)
+     *
+     * @param child     The node
+     * @param n         The number of simulations through the node
+     * @param nodeScore The score from the statistics of the node
+     * @return The score of the node
+     */
+    private double raveScore(int child, int n, double nodeScore) {
+        int amafN = tree.amafN(child);
+        if (amafN == 0)
+            return nodeScore;
+        double beta = Math.sqrt(raveEquivalence / (3 * n + raveEquivalence));
+        return (1 - beta) * nodeScore + beta * tree.amafW(child) / amafN;
+    }
+
+    /**
+     * The value of a node given the proven values of its children (minimax backup).
+     * The player to move at the node wins if one of its moves is a proven win, and otherwise gets the best
+     * value of its moves once they are all proven.
+     *
+     * @param node An expanded node
+     * @return The proven value of the node, or {@link NodeStore#UNPROVEN}
+     */
+    private byte provenFromChildren(int node) {
+        int first = tree.firstChild(node);
+        if (first == NodeStore.NONE)
+            return NodeStore.UNPROVEN;
+        byte best = NodeStore.PROVEN_LOSS;
+        boolean allProven = true;
+        for (int child = first, end = first + tree.nbChildren(node); child < end; child++) {
+            byte value = tree.proven(child);
+            if (value == NodeStore.PROVEN_WIN)
+                return NodeStore.PROVEN_LOSS;
+            if (value == NodeStore.UNPROVEN)
+                allProven = false;
+            else
+                best = (byte) Math.max(best, value);
+        }
+        if (!allProven)
+            return NodeStore.UNPROVEN;
+        return (byte) (NodeStore.PROVEN_WIN + NodeStore.PROVEN_LOSS - best);
+    }
+
+    /**
+     * The number of children of a node that lazy expansion may open (progressive widening)
+     *
+     * @param node An expanded node
+     * @return <code>1 + wideningCoefficient * sqrt(number of steps through the node)</code>,
+     * or no limit if progressive widening is disabled
+     */
+    private int maxOpenedChildren(int node) {
+        if (wideningCoefficient <= 0)
+            return Integer.MAX_VALUE;
+        return 1 + (int) (wideningCoefficient * Math.sqrt((double) tree.n(node) / NB_ROLLOUTS_PER_STEP));
+    }
+
+    /**
+     * Add a node to the path of a step, with the virtual loss of the worker
+     *
+     * @param worker The state of the calling thread
+     * @param node   The visited node
+     */
+    private void visit(Worker worker, int node) {
+        if (worker.nbVisited == worker.visited.length) {
+            worker.visited = Arrays.copyOf(worker.visited, 2 * worker.nbVisited);
+            worker.keys = Arrays.copyOf(worker.keys, 2 * worker.nbVisited);
+        }
+        if (transpositions != null) {
+            long key = worker.game.positionKey();
+            worker.keys[worker.nbVisited] = key;
+            tree.setKey(node, key);
+        }
+        worker.visited[worker.nbVisited++] = node;
+        tree.addVirtualLoss(node, worker.virtualLoss);
+    }
+
+    /**
+     * Move the root of the tree to a game state reached from the root state by one or two moves
+     * (typically our move and the reply of the opponent), keeping the statistics of its subtree.
+     * The rest of the tree is discarded. Must not be called during a search.
+     *
+     * @param state The new game state
+     * @return <code>true</code> if the state was found in the tree and is the new root,
+     * <code>false</code> if it was not found (the tree is unchanged)
+     */
+    public boolean advanceTo(Game state) {
+        if (game.equals(state))
+            return true;
+        int first = tree.firstChild(NodeStore.ROOT);
+        if (first == NodeStore.NONE)
+            return false;
+        for (int child = first, end = first + tree.nbChildren(NodeStore.ROOT); child < end; child++) {
+            game.play(tree.move(child));
+            if (game.equals(state)) {
+                // The statistics count the wins of the player of the root, who changed
+                tree.reroot(child);
+                tree.complementWins(NodeStore.ROOT);
+                return true;
+            }
+            int firstGrandChild = tree.firstChild(child);
+            if (firstGrandChild != NodeStore.NONE) {
+                for (int grandChild = firstGrandChild, last = firstGrandChild + tree.nbChildren(child);
+                     grandChild < last; grandChild++) {
+                    game.play(tree.move(grandChild));
+                    if (game.equals(state)) {
+                        tree.reroot(grandChild);
+                        return true;
+                    }
+                    game.undo();
+                }
+            }
+            game.undo();
+        }
         return false;
     }
 
     /**
      * Select the best move to play, given the current MCTS tree playout statistics
+     * and the final selection rule ({@link #setFinalSelection})
      *
      * @return The best move to play from the current MCTS tree state.
      */
     public Move getBestMove() {
-        int N = root.n;
-        double max = 0;
-        double uct = 0;
-        Move move = root.game.possibleMoves().get(0);
-
-        for (int i = 0; i < root.children.size(); i++) {
-            uct = root.children.get(i).uct(N);
-            if (uct > max) {
-                max = uct;
-                move = root.game.possibleMoves().get(i);
+        int first = tree.firstChild(NodeStore.ROOT);
+        if (first == NodeStore.NONE)
+            return game.possibleMoves().get(0);
+
+        double max = Double.NEGATIVE_INFINITY;
+        int best = NodeStore.NONE;
+        // Without statistics, a move not proven lost, or any move if they all are
+        int fallback = first;
+        for (int child = first, end = first + tree.nbChildren(NodeStore.ROOT); child < end; child++) {
+            // A proven win is played at once, a proven loss only if there is nothing else
+            byte proven = tree.proven(child);
+            if (proven == NodeStore.PROVEN_WIN)
+                return game.decodeMove(tree.move(child));
+            if (proven == NodeStore.PROVEN_LOSS)
+                continue;
+            if (tree.proven(fallback) == NodeStore.PROVEN_LOSS)
+                fallback = child;
+            int n = tree.n(child);
+            if (n == 0)
+                continue;
+            double value = finalSelection == FinalSelection.ROBUST_CHILD ? n : score(child);
+            if (value > max) {
+                max = value;
+                best = child;
             }
         }
-        return move;
+        return game.decodeMove(tree.move(best != NodeStore.NONE ? best : fallback));
     }
 
 
@@ -376,11 +1480,25 @@ public class MonteCarloTreeSearch {
      */
     public String stats() {
         String str = "MCTS with " + nTotal + " evals\n";
-        Iterator<Move> itMove = root.game.possibleMoves().iterator();
-        for (EvalNode node : root.children) {
-            Move move = itMove.next();
-            double score = node.score();
-            str += move + " : " + score + " (" + node.w + "/" + node.n + ")\n";
+        str += "Tree: " + tree.liveNodes() + " nodes in use (budget " + tree.maxNodes() + "), "
+                + tree.memoryBytes() / 1024 + " KB allocated for " + tree.size() + " nodes, "
+                + tree.nbCollapsed() + " subtrees collapsed\n";
+        if (transpositions != null)
+            str += "Transposition table: " + transpositions.memoryBytes() / 1024 + " KB\n";
+        int first = tree.firstChild(NodeStore.ROOT);
+        if (first == NodeStore.NONE)
+            return str;
+        for (int node = first, end = first + tree.nbChildren(NodeStore.ROOT); node < end; node++) {
+            Move move = game.decodeMove(tree.move(node));
+            double score = score(node);
+            str += move + " : " + score + " (" + tree.w(node) + "/" + tree.n(node) + ")";
+            switch (tree.proven(node)) {
+                case NodeStore.PROVEN_WIN -> str += " proven win";
+                case NodeStore.PROVEN_DRAW -> str += " proven draw";
+                case NodeStore.PROVEN_LOSS -> str += " proven loss";
+                default -> { }
+            }
+            str += "\n";
         }
         return str;
     }
@@ -0,0 +1,739 @@
+package fr.istic.ia.tp1;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import fr.istic.ia.tp1.Game.MoveBuffer;
+
+/**
+ * The nodes of a MCTS tree, stored as primitive arrays instead of objects (structure of arrays).
+ * <p>
+ * A node is an <code>int</code> index. It holds its statistics, the code of the move leading to it from its
+ * parent (so every node is also the edge from its parent), and the location of its children: the children of
+ * a node are consecutive nodes, from {@link #firstChild(int)} to <code>firstChild + nbChildren - 1</code>.
+ * Game states are not stored: the state of a node is reached by playing the moves of the path from the root.
+ * <p>
+ * Arrays are allocated by pages that never move, so the store can grow while other threads read it.
+ * Statistics are updated atomically, and the children of a node are published at once by {@link #expand},
+ * so that several threads can search the same tree.
+ * <p>
+ * The number of nodes is bounded by a budget. When it is reached, {@link #expand} fails until room is made with
+ * {@link #collapse(int)}, which returns the nodes of a subtree to a pool of free blocks for later expansions.
+ * The allocated nodes, free or not, stay within the budget too: once it is reached, free blocks are split
+ * instead of allocating new nodes. Free blocks are merged with their free neighbours when they are returned,
+ * and the pool keeps its links in the free nodes themselves, so it needs no memory beyond its size classes.
+ */
+final class NodeStore {
+
+    /**
+     * The index of the root node
+     */
+    static final int ROOT = 0;
+
+    /**
+     * The {@link #firstChild(int)} of a node that was not expanded yet
+     */
+    static final int NONE = -1;
+
+    /**
+     * Memory used by a node in the arrays, in bytes, without the optional arrays
+     */
+    static final int BYTES_PER_NODE = 4 + 8 + 4 + 8 + 4 + 4 + 4 + 1;
+
+    /**
+     * Proven values of a node, for the player who played the move leading to it ({@link #proven(int)}).
+     * A value is the opposite of another when they sum to {@link #PROVEN_WIN} + {@link #PROVEN_LOSS}.
+     */
+    static final byte UNPROVEN = 0;
+    static final byte PROVEN_LOSS = 1;
+    static final byte PROVEN_DRAW = 2;
+    static final byte PROVEN_WIN = 3;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    /**
+     * The arrays of {@link #PAGE_SIZE} consecutive nodes
+     */
+    private static final class Page {
+        /** The number of simulations run through the node */
+        final int[] n = new int[PAGE_SIZE];
+        /** The number of winning runs */
+        final double[] w = new double[PAGE_SIZE];
+        /** Simulations of parallel searches in progress through the node */
+        final int[] virtualLoss = new int[PAGE_SIZE];
+        /** The code of the move leading from the parent to the node */
+        final long[] move = new long[PAGE_SIZE];
+        /** The index of the first child of the node, or {@link #NONE} */
+        final int[] firstChild = new int[PAGE_SIZE];
+        /** The number of children of the node */
+        final int[] nbChildren = new int[PAGE_SIZE];
+        /** The number of children opened to the selection, for lazy expansion */
+        final int[] nbOpened = new int[PAGE_SIZE];
+        /** The proven value of the node, or {@link #UNPROVEN} */
+        final byte[] proven = new byte[PAGE_SIZE];
+        /** The position hash of the node (0 if unknown), only for a store created with keys */
+        long[] key;
+        /** The number of simulations in which the move of the node was played later by the same player (AMAF),
+         * only for a store created with AMAF statistics */
+        int[] amafN;
+        /** The number of winning AMAF simulations */
+        double[] amafW;
+        /** The prior probability of the move of the node, only for a store created with priors */
+        float[] prior;
+
+        Page(boolean withKeys, boolean withAmaf, boolean withPriors) {
+            Arrays.fill(firstChild, NONE);
+            if (withKeys)
+                key = new long[PAGE_SIZE];
+            if (withAmaf) {
+                amafN = new int[PAGE_SIZE];
+                amafW = new double[PAGE_SIZE];
+            }
+            if (withPriors)
+                prior = new float[PAGE_SIZE];
+        }
+    }
+
+    /**
+     * The pages, replaced by a larger copy when full (the pages themselves are kept)
+     */
+    private volatile Page[] pages = new Page[16];
+
+    /**
+     * The number of allocated nodes, free or not
+     */
+    private int size;
+
+    /**
+     * The number of nodes in use (allocated and not in the pool)
+     */
+    private int liveNodes;
+
+    /**
+     * The maximum number of nodes in use, and of allocated nodes
+     */
+    private final int maxNodes;
+
+    /**
+     * The {@link #proven(int)} value marking the first and the last node of a free block
+     */
+    private static final byte FREE = -1;
+
+    /**
+     * The free blocks of fewer nodes have a size class of their own, the larger ones share a class per power of 2
+     */
+    private static final int EXACT_CLASSES = 64;
+    private static final int NB_CLASSES = EXACT_CLASSES + Integer.numberOfLeadingZeros(EXACT_CLASSES);
+
+    /**
+     * The pool of free blocks of consecutive nodes: the first free block of each size class.
+     * The blocks of a class form a doubly linked list, stored in their first node: the next block in
+     * {@link #firstChild(int)}, the previous one in {@link #nbOpened(int)}, and the size in {@link #nbChildren(int)}.
+     * The last node of a block stores its first node in {@link #virtualLoss(int)}, to merge it with the next block.
+     */
+    private final int[] freeBlocks = new int[NB_CLASSES];
+
+    /**
+     * The number of subtrees removed by {@link #collapse(int)}
+     */
+    private int nbCollapsed;
+
+    /**
+     * Whether the nodes store the hash of their position
+     */
+    private final boolean withKeys;
+
+    /**
+     * Whether the nodes store all-moves-as-first statistics
+     */
+    private final boolean withAmaf;
+
+    /**
+     * Whether the nodes store the prior probability of their move
+     */
+    private final boolean withPriors;
+
+    /**
+     * Create a store holding only a root node, without limit on the number of nodes
+     */
+    NodeStore() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a store holding only a root node
+     *
+     * @param maxNodes The maximum number of nodes in use (at least 1)
+     */
+    NodeStore(int maxNodes) {
+        this(maxNodes, false, false, false);
+    }
+
+    /**
+     * Create a store holding only a root node
+     *
+     * @param maxNodes The maximum number of nodes in use (at least 1)
+     * @param withKeys <code>true</code> to store the hash of the position of each node, see {@link #key(int)}
+     * @param withAmaf   <code>true</code> to store all-moves-as-first statistics in each node, see {@link #amafN(int)}
+     * @param withPriors <code>true</code> to store the prior probability of the move of each node, see {@link #prior(int)}
+     */
+    NodeStore(int maxNodes, boolean withKeys, boolean withAmaf, boolean withPriors) {
+        this.maxNodes = Math.max(maxNodes, 1);
+        this.withKeys = withKeys;
+        this.withAmaf = withAmaf;
+        this.withPriors = withPriors;
+        Arrays.fill(freeBlocks, NONE);
+        allocate(1);
+    }
+
+    /**
+     * Memory used by a node, in bytes
+     *
+     * @param withKeys   Whether the nodes store the hash of their position
+     * @param withAmaf   Whether the nodes store all-moves-as-first statistics
+     * @param withPriors Whether the nodes store the prior probability of their move
+     * @return The size of a node in the arrays
+     */
+    static int bytesPerNode(boolean withKeys, boolean withAmaf, boolean withPriors) {
+        return BYTES_PER_NODE + (withKeys ? 8 : 0) + (withAmaf ? 4 + 8 : 0) + (withPriors ? 4 : 0);
+    }
+
+    /**
+     * The number of nodes fitting in a memory budget
+     *
+     * @param maxBytes   The memory budget, in bytes
+     * @param withKeys   Whether the nodes store the hash of their position
+     * @param withAmaf   Whether the nodes store all-moves-as-first statistics
+     * @param withPriors Whether the nodes store the prior probability of their move
+     * @return The number of nodes
+     */
+    static int nodesForBytes(long maxBytes, boolean withKeys, boolean withAmaf, boolean withPriors) {
+        return (int) Math.min(Math.max(maxBytes, 0) / bytesPerNode(withKeys, withAmaf, withPriors),
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Allocate consecutive nodes: a free block of the right size from the pool, else new nodes while the allocated
+     * nodes fit in the budget, else a larger free block split in two
+     *
+     * @param count The number of nodes
+     * @return The index of the first node, or {@link #NONE} if the budget is reached
+     */
+    private synchronized int allocate(int count) {
+        if (liveNodes > maxNodes - count) {
+            return NONE;
+        }
+        if (count < EXACT_CLASSES && freeBlocks[count] != NONE) {
+            return takeFreeBlock(freeBlocks[count], count);
+        }
+        if (size <= maxNodes - count) {
+            int first = size;
+            int lastPage = (first + count - 1) >>> PAGE_BITS;
+            Page[] table = pages;
+            if (lastPage >= table.length) {
+                table = Arrays.copyOf(table, Math.max(2 * table.length, lastPage + 1));
+            }
+            for (int p = first >>> PAGE_BITS; p <= lastPage; p++) {
+                if (table[p] == null)
+                    table[p] = new Page(withKeys, withAmaf, withPriors);
+            }
+            pages = table;
+            size = first + count;
+            liveNodes += count;
+            return first;
+        }
+        int block = fittingFreeBlock(count);
+        return block == NONE ? NONE : takeFreeBlock(block, count);
+    }
+
+    /**
+     * @param size The number of nodes of a free block
+     * @return The size class of the block in {@link #freeBlocks}
+     */
+    private static int sizeClass(int size) {
+        if (size < EXACT_CLASSES)
+            return size;
+        return EXACT_CLASSES + Integer.numberOfLeadingZeros(EXACT_CLASSES) - Integer.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * Find a free block of at least <code>count</code> nodes: the first block of the next non-empty class,
+     * whose blocks are all large enough, else a large enough block of the class of <code>count</code>
+     *
+     * @param count The number of nodes
+     * @return The first node of the block, or {@link #NONE}
+     */
+    private int fittingFreeBlock(int count) {
+        int sizeClass = sizeClass(count);
+        for (int c = sizeClass + 1; c < NB_CLASSES; c++) {
+            if (freeBlocks[c] != NONE)
+                return freeBlocks[c];
+        }
+        if (sizeClass >= EXACT_CLASSES) {
+            for (int block = freeBlocks[sizeClass]; block != NONE; block = page(block).firstChild[block & PAGE_MASK]) {
+                if (page(block).nbChildren[block & PAGE_MASK] >= count)
+                    return block;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Take a block from the pool, and return the nodes not needed to the pool
+     *
+     * @param block The first node of a free block of at least <code>count</code> nodes
+     * @param count The number of nodes needed
+     * @return The index of the first node
+     */
+    private int takeFreeBlock(int block, int count) {
+        int blockSize = page(block).nbChildren[block & PAGE_MASK];
+        removeFreeBlock(block);
+        liveNodes += count;
+        if (blockSize > count)
+            addFreeBlock(block + count, blockSize - count);
+        return block;
+    }
+
+    /**
+     * Return consecutive nodes to the pool, merged with the free blocks just before and after them
+     *
+     * @param first The first node
+     * @param count The number of nodes
+     */
+    private synchronized void free(int first, int count) {
+        liveNodes -= count;
+        int previousEnd = first - 1;
+        if (previousEnd > ROOT && page(previousEnd).proven[previousEnd & PAGE_MASK] == FREE) {
+            int previous = page(previousEnd).virtualLoss[previousEnd & PAGE_MASK];
+            removeFreeBlock(previous);
+            count += first - previous;
+            first = previous;
+        }
+        int next = first + count;
+        if (next < size && page(next).proven[next & PAGE_MASK] == FREE) {
+            count += page(next).nbChildren[next & PAGE_MASK];
+            removeFreeBlock(next);
+        }
+        addFreeBlock(first, count);
+    }
+
+    /**
+     * Add a block of nodes to the pool
+     *
+     * @param first The first node
+     * @param count The number of nodes
+     */
+    private void addFreeBlock(int first, int count) {
+        int sizeClass = sizeClass(count);
+        int next = freeBlocks[sizeClass];
+        Page page = page(first);
+        int i = first & PAGE_MASK;
+        page.firstChild[i] = next;
+        page.nbOpened[i] = NONE;
+        page.nbChildren[i] = count;
+        page.proven[i] = FREE;
+        if (next != NONE)
+            page(next).nbOpened[next & PAGE_MASK] = first;
+        freeBlocks[sizeClass] = first;
+
+        int last = first + count - 1;
+        page(last).proven[last & PAGE_MASK] = FREE;
+        page(last).virtualLoss[last & PAGE_MASK] = first;
+    }
+
+    /**
+     * Remove a block from the pool, its nodes are no longer free
+     *
+     * @param block The first node of the block
+     */
+    private void removeFreeBlock(int block) {
+        Page page = page(block);
+        int i = block & PAGE_MASK;
+        int count = page.nbChildren[i];
+        int next = page.firstChild[i];
+        int previous = page.nbOpened[i];
+        if (previous == NONE)
+            freeBlocks[sizeClass(count)] = next;
+        else
+            page(previous).firstChild[previous & PAGE_MASK] = next;
+        if (next != NONE)
+            page(next).nbOpened[next & PAGE_MASK] = previous;
+        page.proven[i] = UNPROVEN;
+        int last = block + count - 1;
+        page(last).proven[last & PAGE_MASK] = UNPROVEN;
+    }
+
+    private Page page(int node) {
+        return pages[node >>> PAGE_BITS];
+    }
+
+    /**
+     * @return The number of allocated nodes, including the free ones kept in the pool
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of nodes in use
+     */
+    synchronized int liveNodes() {
+        return liveNodes;
+    }
+
+    /**
+     * @return The maximum number of nodes in use
+     */
+    int maxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * @return The hash of the position of the node, 0 if it is not known yet (needs a store with keys)
+     */
+    long key(int node) {
+        return page(node).key[node & PAGE_MASK];
+    }
+
+    /**
+     * Record the hash of the position of a node (needs a store with keys)
+     *
+     * @param node The node
+     * @param key  The hash of its position
+     */
+    void setKey(int node, long key) {
+        page(node).key[node & PAGE_MASK] = key;
+    }
+
+    /**
+     * @return The number of simulations through the parent of the node in which the move of the node was played
+     * later by the same player, all moves as first (needs a store with AMAF statistics)
+     */
+    int amafN(int node) {
+        return page(node).amafN[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The number of winning all-moves-as-first simulations of the node (needs a store with AMAF statistics)
+     */
+    double amafW(int node) {
+        return page(node).amafW[node & PAGE_MASK];
+    }
+
+    /**
+     * Atomically add results to the all-moves-as-first statistics of a node (needs a store with AMAF statistics)
+     *
+     * @param node The node to update
+     * @param n    The number of simulations to add
+     * @param w    The number of wins to add
+     */
+    void addAmaf(int node, int n, double w) {
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        INTS.getAndAdd(page.amafN, i, n);
+        double previous;
+        do {
+            previous = (double) DOUBLES.getVolatile(page.amafW, i);
+        } while (!DOUBLES.weakCompareAndSet(page.amafW, i, previous, previous + w));
+    }
+
+    /**
+     * @return The prior probability of the move of the node among its siblings, set by
+     * {@link #expand(int, MoveBuffer, double[])} (needs a store with priors)
+     */
+    double prior(int node) {
+        return page(node).prior[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The number of subtrees removed to make room
+     */
+    synchronized int nbCollapsed() {
+        return nbCollapsed;
+    }
+
+    /**
+     * @return The memory allocated for the nodes, in bytes
+     */
+    long memoryBytes() {
+        long nbPages = 0;
+        for (Page page : pages) {
+            if (page != null)
+                nbPages++;
+        }
+        return nbPages * PAGE_SIZE * bytesPerNode(withKeys, withAmaf, withPriors);
+    }
+
+    /**
+     * @return The number of simulations run through the node
+     */
+    int n(int node) {
+        return page(node).n[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The number of winning simulations run through the node
+     */
+    double w(int node) {
+        return page(node).w[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The virtual loss of the node
+     */
+    int virtualLoss(int node) {
+        return page(node).virtualLoss[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The code of the move leading to the node (0 for the root)
+     */
+    long move(int node) {
+        return page(node).move[node & PAGE_MASK];
+    }
+
+    /**
+     * @return The index of the first child of the node, or {@link #NONE} if it was not expanded
+     */
+    int firstChild(int node) {
+        return (int) INTS.getAcquire(page(node).firstChild, node & PAGE_MASK);
+    }
+
+    /**
+     * @return The number of children of the node, 0 if it was not expanded
+     */
+    int nbChildren(int node) {
+        return (int) INTS.getAcquire(page(node).nbChildren, node & PAGE_MASK);
+    }
+
+    /**
+     * @return The number of children of the node opened by {@link #open(int, int)}
+     */
+    int nbOpened(int node) {
+        return (int) INTS.getAcquire(page(node).nbOpened, node & PAGE_MASK);
+    }
+
+    /**
+     * Open the next child of a node, for lazy expansion: children are opened one at a time, in order.
+     * Only one of the threads opening the same child at the same time succeeds.
+     *
+     * @param node     The expanded node
+     * @param nbOpened The number of children of the node already opened
+     * @return <code>true</code> if the child <code>firstChild + nbOpened</code> was opened by this call
+     */
+    boolean open(int node, int nbOpened) {
+        return INTS.compareAndSet(page(node).nbOpened, node & PAGE_MASK, nbOpened, nbOpened + 1);
+    }
+
+    /**
+     * @return The proven value of the node for the player who played the move leading to it
+     * ({@link #PROVEN_WIN}, {@link #PROVEN_DRAW} or {@link #PROVEN_LOSS}), or {@link #UNPROVEN}
+     */
+    byte proven(int node) {
+        return page(node).proven[node & PAGE_MASK];
+    }
+
+    /**
+     * Record the proven value of a node. A proven value never changes, so concurrent writes are harmless.
+     *
+     * @param node  The node
+     * @param value The value for the player who played the move leading to it
+     */
+    void setProven(int node, byte value) {
+        page(node).proven[node & PAGE_MASK] = value;
+    }
+
+    /**
+     * Atomically add results to the statistics of a node
+     *
+     * @param node The node to update
+     * @param n    The number of simulations to add
+     * @param w    The number of wins to add
+     */
+    void addStats(int node, int n, double w) {
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        INTS.getAndAdd(page.n, i, n);
+        double previous;
+        do {
+            previous = (double) DOUBLES.getVolatile(page.w, i);
+        } while (!DOUBLES.weakCompareAndSet(page.w, i, previous, previous + w));
+    }
+
+    /**
+     * Atomically add to the virtual loss of a node
+     *
+     * @param node   The node to update
+     * @param amount The number of simulations to add (negative to remove them)
+     */
+    void addVirtualLoss(int node, int amount) {
+        if (amount != 0)
+            INTS.getAndAdd(page(node).virtualLoss, node & PAGE_MASK, amount);
+    }
+
+    /**
+     * Create the children of a node, one per move, and publish them at once.
+     * The thread setting the number of children of the node first expands it: the others keep its children,
+     * and do not write to the node. If the node budget is reached, the node is left unexpanded.
+     * Another thread may be publishing the children when this one returns <code>false</code>:
+     * {@link #nbChildren(int)} is already set, {@link #firstChild(int)} may still be {@link #NONE}.
+     *
+     * @param node  The node to expand
+     * @param moves The codes of the moves from the node state (at least one)
+     * @return <code>true</code> if the children were created by this call
+     */
+    boolean expand(int node, MoveBuffer moves) {
+        return expand(node, moves, null);
+    }
+
+    /**
+     * Create the children of a node with the prior probabilities of their moves, see {@link #expand(int, MoveBuffer)}
+     *
+     * @param node   The node to expand
+     * @param moves  The codes of the moves from the node state (at least one)
+     * @param priors The prior probabilities of the moves, in the same order, or null for priors of 0
+     *               (stored only in a store created with priors)
+     * @return <code>true</code> if the children were created by this call
+     */
+    boolean expand(int node, MoveBuffer moves, double[] priors) {
+        int count = moves.size();
+        int first = allocate(count);
+        if (first == NONE)
+            return false;
+        for (int i = 0; i < count; i++) {
+            int child = first + i;
+            Page page = page(child);
+            int c = child & PAGE_MASK;
+            page.n[c] = 0;
+            page.w[c] = 0.0;
+            page.virtualLoss[c] = 0;
+            page.move[c] = moves.get(i);
+            page.firstChild[c] = NONE;
+            page.nbChildren[c] = 0;
+            page.nbOpened[c] = 0;
+            page.proven[c] = UNPROVEN;
+            if (page.key != null)
+                page.key[c] = 0;
+            if (page.amafN != null) {
+                page.amafN[c] = 0;
+                page.amafW[c] = 0.0;
+            }
+            if (page.prior != null)
+                page.prior[c] = priors == null ? 0f : (float) priors[i];
+        }
+        // Claim the node, whose opened children are not counted yet, then publish its children
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        if (!INTS.compareAndSet(page.nbChildren, i, 0, count)) {
+            free(first, count);
+            return false;
+        }
+        INTS.setRelease(page.firstChild, i, first);
+        return true;
+    }
+
+    /**
+     * Remove the subtree below a node, returning its nodes to the pool.
+     * The node itself and its statistics are kept, and it can be expanded again.
+     * No other thread may use the store during the call.
+     *
+     * @param node The node to collapse
+     */
+    void collapse(int node) {
+        if (firstChild(node) == NONE)
+            return;
+        release(node);
+        synchronized (this) {
+            nbCollapsed++;
+        }
+    }
+
+    /**
+     * Make a node the new root: its statistics and subtree are moved to the root,
+     * and all the other nodes are returned to the pool.
+     * No other thread may use the store during the call.
+     *
+     * @param node A node of the tree
+     */
+    void reroot(int node) {
+        if (node == ROOT)
+            return;
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        int n = page.n[i];
+        double w = page.w[i];
+        int first = page.firstChild[i];
+        int count = page.nbChildren[i];
+        int opened = page.nbOpened[i];
+        byte proven = page.proven[i];
+        long key = page.key != null ? page.key[i] : 0;
+        int amafN = page.amafN != null ? page.amafN[i] : 0;
+        double amafW = page.amafW != null ? page.amafW[i] : 0.0;
+
+        // Detach the subtree of the node, then release the rest of the tree
+        page.firstChild[i] = NONE;
+        release(ROOT);
+
+        Page rootPage = page(ROOT);
+        rootPage.n[ROOT] = n;
+        rootPage.w[ROOT] = w;
+        rootPage.virtualLoss[ROOT] = 0;
+        rootPage.nbChildren[ROOT] = count;
+        rootPage.nbOpened[ROOT] = opened;
+        rootPage.proven[ROOT] = proven;
+        if (rootPage.key != null)
+            rootPage.key[ROOT] = key;
+        if (rootPage.amafN != null) {
+            rootPage.amafN[ROOT] = amafN;
+            rootPage.amafW[ROOT] = amafW;
+        }
+        INTS.setRelease(rootPage.firstChild, ROOT, first);
+    }
+
+    /**
+     * Count the wins of the other player in the statistics of a subtree: <code>w</code> becomes <code>n - w</code>
+     * (each simulation gives one win, shared in case of equality), and likewise for the AMAF statistics.
+     * No other thread may use the store during the call.
+     *
+     * @param node The root of the subtree
+     */
+    void complementWins(int node) {
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        page.w[i] = page.n[i] - page.w[i];
+        if (page.amafN != null)
+            page.amafW[i] = page.amafN[i] - page.amafW[i];
+        int first = firstChild(node);
+        if (first == NONE)
+            return;
+        for (int child = first, end = first + nbChildren(node); child < end; child++) {
+            complementWins(child);
+        }
+    }
+
+    /**
+     * Return the nodes of the subtree below a node to the pool
+     *
+     * @param node The expanded node
+     */
+    private void release(int node) {
+        int first = firstChild(node);
+        int count = nbChildren(node);
+        for (int child = first; child < first + count; child++) {
+            if (firstChild(child) != NONE)
+                release(child);
+        }
+        Page page = page(node);
+        int i = node & PAGE_MASK;
+        INTS.setRelease(page.firstChild, i, NONE);
+        page.nbChildren[i] = 0;
+        page.nbOpened[i] = 0;
+        free(first, count);
+    }
+}
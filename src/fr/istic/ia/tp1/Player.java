@@ -13,4 +13,10 @@ public interface Player {
 	 * @return The move ({@link Game.Move}) chosen by the user or the algorithm
 	 */
 	public Game.Move play(Game game);
+	
+	/**
+	 * Releases the resources of the player (e.g. its threads) once the game is over.
+	 * Players without such resources do not override it.
+	 */
+	public default void close() { }
 }
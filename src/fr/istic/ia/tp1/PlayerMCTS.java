@@ -1,5 +1,15 @@
 package fr.istic.ia.tp1;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 /**
  * An implementation of {@link Player} that uses the MCTS algorithm
  * @author vdrevell
@@ -7,8 +17,71 @@ package fr.istic.ia.tp1;
  */
 public class PlayerMCTS implements Player {
 	
+	/**
+	 * The ways of sharing the search between several threads
+	 */
+	public enum Parallelization {
+		/** Independent trees, whose root statistics are merged */
+		ROOT,
+		/** A single tree searched by all threads, with virtual loss */
+		TREE,
+		/** A single search, whose rollout batches are split between the threads */
+		LEAF
+	}
+	
 	private int timeAllowedMillis;
 	
+	/** Number of search threads, shared as set by {@link #parallelization} */
+	private int nbThreads;
+	
+	/** How the threads share the search */
+	private Parallelization parallelization;
+	
+	/** Worker threads of the parallel search, created when first needed */
+	private ExecutorService pool;
+	
+	/** Worker threads of the leaf-parallel rollouts, created when first needed */
+	private ForkJoinPool rolloutPool;
+	
+	/** Source of the random streams of the trees */
+	private final SplittableRandom seeds = new SplittableRandom();
+	
+	/** Whether the trees are expanded one child per visit, see {@link MonteCarloTreeSearch#setLazyExpansion} */
+	private boolean lazyExpansion;
+	
+	/** Coefficient of progressive widening of lazy expansion */
+	private double wideningCoefficient;
+	
+	/** Number of positions in the transposition tables of the trees, 0 for no table */
+	private int transpositionCapacity;
+	
+	/** Maximum number of moves of the rollouts before the static evaluation, 0 to play them to the end */
+	private int rolloutDepth;
+	
+	/** Choice of the moves of the rollouts of the trees */
+	private PlayoutPolicy playoutPolicy = PlayoutPolicy.UNIFORM;
+	
+	/** Equivalence parameter of RAVE in the trees, 0 without RAVE */
+	private double raveEquivalence;
+	
+	/** Tree policy of the trees */
+	private SelectionPolicy selectionPolicy = SelectionPolicy.ucb1(1 / Math.sqrt(2));
+	
+	/** Rule choosing the move to play from the statistics of the trees */
+	private MonteCarloTreeSearch.FinalSelection finalSelection = MonteCarloTreeSearch.FinalSelection.ROBUST_CHILD;
+	
+	/** The trees of the previous move, kept to reuse the subtrees of the new game state */
+	private MonteCarloTreeSearch[] trees;
+	
+	/** Whether the trees are searched during the turn of the opponent */
+	private boolean pondering;
+	
+	/** The thread searching during the turn of the opponent, created when first needed */
+	private ExecutorService ponderThread;
+	
+	/** The search running during the turn of the opponent, or null */
+	private Future<Void> ponderTask;
+	
 	/**
 	 * Default constructor, sets a computation timeout of 1000 ms.
 	 */
@@ -21,13 +94,324 @@ public class PlayerMCTS implements Player {
 	 * @param timeAllowedMillis: allowed computation time, in milliseconds.
 	 */
 	public PlayerMCTS(int timeAllowedMillis) {
+		this(timeAllowedMillis, 1);
+	}
+	
+	/**
+	 * Constructor for a root-parallel search: <code>nbThreads</code> independent trees are searched at the same time,
+	 * with different random streams, and their root statistics are merged to choose the move.
+	 * @param timeAllowedMillis: allowed computation time, in milliseconds.
+	 * @param nbThreads: number of trees and threads (e.g. {@link Runtime#availableProcessors()}).
+	 */
+	public PlayerMCTS(int timeAllowedMillis, int nbThreads) {
+		this(timeAllowedMillis, nbThreads, Parallelization.ROOT);
+	}
+	
+	/**
+	 * Constructor for a parallel search.
+	 * @param timeAllowedMillis: allowed computation time, in milliseconds.
+	 * @param nbThreads: number of threads.
+	 * @param parallelization: how the threads share the search.
+	 */
+	public PlayerMCTS(int timeAllowedMillis, int nbThreads, Parallelization parallelization) {
 		this.timeAllowedMillis = timeAllowedMillis;
+		this.nbThreads = Math.max(nbThreads, 1);
+		this.parallelization = parallelization;
+	}
+	
+	/**
+	 * Expand the trees lazily, one child per visit, with progressive widening.
+	 * @param wideningCoefficient: coefficient of progressive widening, or 0 to open every child.
+	 */
+	public void setLazyExpansion(double wideningCoefficient) {
+		this.lazyExpansion = true;
+		this.wideningCoefficient = wideningCoefficient;
+	}
+	
+	/**
+	 * Share the statistics of transpositions in the trees, see {@link MonteCarloTreeSearch#setTranspositions(int)}.
+	 * @param capacity: number of positions of the transposition table of each tree, 0 to disable it.
+	 */
+	public void setTranspositions(int capacity) {
+		this.transpositionCapacity = capacity;
+	}
+	
+	/**
+	 * Cut the rollouts of the trees and evaluate their position, see {@link MonteCarloTreeSearch#setRolloutDepth(int)}.
+	 * @param maxPlies: maximum number of moves of a rollout, 0 to play the rollouts to the end of the game.
+	 */
+	public void setRolloutDepth(int maxPlies) {
+		this.rolloutDepth = maxPlies;
+	}
+	
+	/**
+	 * Choose the moves of the rollouts with a playout policy, see {@link MonteCarloTreeSearch#setPlayoutPolicy(PlayoutPolicy)}.
+	 * @param policy: the playout policy (default {@link PlayoutPolicy#UNIFORM}).
+	 */
+	public void setPlayoutPolicy(PlayoutPolicy policy) {
+		this.playoutPolicy = policy;
+	}
+	
+	/**
+	 * Blend all-moves-as-first statistics into the selection of the trees, see {@link MonteCarloTreeSearch#setRave(double)}.
+	 * @param equivalence: equivalence parameter of the RAVE schedule, in simulations, 0 to disable RAVE.
+	 */
+	public void setRave(double equivalence) {
+		this.raveEquivalence = equivalence;
+	}
+	
+	/**
+	 * Choose the tree policy of the trees, see {@link MonteCarloTreeSearch#setSelectionPolicy(SelectionPolicy)}.
+	 * @param policy: the selection policy (default UCB1 with c = 1/sqrt(2)).
+	 */
+	public void setSelectionPolicy(SelectionPolicy policy) {
+		this.selectionPolicy = policy;
+	}
+	
+	/**
+	 * Choose the rule selecting the move to play, see {@link MonteCarloTreeSearch#setFinalSelection(MonteCarloTreeSearch.FinalSelection)}.
+	 * @param finalSelection: the final selection rule (default {@link MonteCarloTreeSearch.FinalSelection#ROBUST_CHILD}).
+	 */
+	public void setFinalSelection(MonteCarloTreeSearch.FinalSelection finalSelection) {
+		this.finalSelection = finalSelection;
+	}
+	
+	/**
+	 * Keep searching during the turn of the opponent (pondering), on a background thread.
+	 * The search goes on from the state reached by our move, and the subtree of the reply of the opponent
+	 * is reused on the next call to {@link #play(Game)}. The background search runs until that call, or until
+	 * {@link #close()}, to call when the game is over (the reply of the opponent may end it).
+	 * @param pondering: <code>true</code> to search during the turn of the opponent.
+	 */
+	public void setPondering(boolean pondering) {
+		this.pondering = pondering;
+		if (!pondering)
+			stopPondering();
+	}
+	
+	/**
+	 * Get a tree to search from a game state: the tree of the previous move if the game state is one of its
+	 * children or grandchildren (its subtree is kept), or a new tree with the options of the player.
+	 * @param index: index of the tree (several trees are searched with root parallelization).
+	 * @param game: the game state.
+	 * @param maxTreeBytes: memory budget of the tree, in bytes.
+	 * @return The tree.
+	 */
+	private MonteCarloTreeSearch tree(int index, Game game, long maxTreeBytes) {
+		MonteCarloTreeSearch mcts = trees[index];
+		if (mcts != null && mcts.advanceTo(game)) {
+			return mcts;
+		}
+		mcts = new MonteCarloTreeSearch(game, seeds.split(), maxTreeBytes);
+		mcts.setLazyExpansion(lazyExpansion, wideningCoefficient);
+		mcts.setTranspositions(transpositionCapacity);
+		mcts.setRolloutDepth(rolloutDepth);
+		mcts.setPlayoutPolicy(playoutPolicy);
+		mcts.setRave(raveEquivalence);
+		mcts.setSelectionPolicy(selectionPolicy);
+		mcts.setFinalSelection(finalSelection);
+		trees[index] = mcts;
+		return mcts;
 	}
 	
 	@Override
 	public Game.Move play(Game game) {
-		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(game);
-		mcts.evaluateTreeWithTimeLimit(timeAllowedMillis);
+		stopPondering();
+		Game.Move move = search(game);
+		if (pondering)
+			startPondering(game, move);
+		return move;
+	}
+	
+	/**
+	 * Search the best move from a game state, within the allowed computation time
+	 * @param game: the game state.
+	 * @return The best move found.
+	 */
+	private Game.Move search(Game game) {
+		int nbTrees = parallelization == Parallelization.ROOT ? nbThreads : 1;
+		if (trees == null || trees.length != nbTrees)
+			trees = new MonteCarloTreeSearch[nbTrees];
+		
+		if (nbThreads == 1) {
+			MonteCarloTreeSearch mcts = tree(0, game, MonteCarloTreeSearch.defaultTreeBytes());
+			printReuse(mcts);
+			mcts.evaluateTreeWithTimeLimit(timeAllowedMillis);
+			return mcts.getBestMove();
+		}
+		
+		if (parallelization == Parallelization.LEAF) {
+			if (rolloutPool == null)
+				rolloutPool = new ForkJoinPool(nbThreads);
+			MonteCarloTreeSearch mcts = tree(0, game, MonteCarloTreeSearch.defaultTreeBytes());
+			printReuse(mcts);
+			mcts.setRolloutPool(rolloutPool);
+			mcts.evaluateTreeWithTimeLimit(timeAllowedMillis);
+			return mcts.getBestMove();
+		}
+		
+		createPool();
+		
+		if (parallelization == Parallelization.TREE) {
+			MonteCarloTreeSearch mcts = tree(0, game, MonteCarloTreeSearch.defaultTreeBytes());
+			printReuse(mcts);
+			mcts.evaluateTreeWithTimeLimit(timeAllowedMillis, pool, nbThreads);
+			return mcts.getBestMove();
+		}
+		
+		// Search independent trees, each one on its own copy of the game
+		List<Callable<Long>> searches = new ArrayList<>();
+		int nbPlayoutsBefore = 0;
+		for (int i = 0; i < nbThreads; ++i) {
+			// The trees share the memory budget of a single tree
+			MonteCarloTreeSearch tree = tree(i, game, MonteCarloTreeSearch.defaultTreeBytes() / nbThreads);
+			nbPlayoutsBefore += tree.nTotal;
+			searches.add(() -> tree.searchWithTimeLimit(timeAllowedMillis));
+		}
+		long elapsedMillis = 0;
+		try {
+			for (Future<Long> search : pool.invokeAll(searches)) {
+				elapsedMillis = Math.max(elapsedMillis, search.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		
+		// Merge the root statistics
+		MonteCarloTreeSearch mcts = MonteCarloTreeSearch.merge(trees);
+		System.out.println("Stopped root-parallel search on " + nbThreads + " threads after " + elapsedMillis + " ms. "
+				+ "Root stats is " + mcts.tree.w(NodeStore.ROOT) + "/" + mcts.tree.n(NodeStore.ROOT)
+				+ String.format(", %.0f playouts/s", 1000.0 * (mcts.nTotal - nbPlayoutsBefore) / Math.max(elapsedMillis, 1)));
 		return mcts.getBestMove();
 	}
+	
+	/**
+	 * Create the worker threads of the parallel searches, if needed
+	 */
+	private void createPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(nbThreads, task -> {
+				Thread thread = new Thread(task, "mcts-worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	/**
+	 * Stop pondering and the worker threads of the parallel searches.
+	 * The player can still play: the threads are created again when needed.
+	 */
+	@Override
+	public void close() {
+		stopPondering();
+		if (ponderThread != null) {
+			ponderThread.shutdown();
+			ponderThread = null;
+		}
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		if (rolloutPool != null) {
+			rolloutPool.shutdown();
+			rolloutPool = null;
+		}
+	}
+	
+	/**
+	 * Start searching the trees on a background thread from the state reached by our move.
+	 * The trees are moved to that state first: the background search only uses them, not the game of the caller.
+	 * @param game: the game state before our move.
+	 * @param move: our move.
+	 */
+	private void startPondering(Game game, Game.Move move) {
+		Game next = game.clone();
+		next.play(move);
+		if (next.winner() != null)
+			return;
+		for (int i = 0; i < trees.length; ++i) {
+			if (trees[i] == null || !trees[i].advanceTo(next))
+				return;
+		}
+		
+		if (nbThreads > 1 && parallelization != Parallelization.LEAF)
+			createPool();
+		if (ponderThread == null) {
+			ponderThread = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "mcts-ponder");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		ponderTask = ponderThread.submit(() -> {
+			if (trees.length > 1) {
+				List<Callable<Long>> searches = new ArrayList<>();
+				for (MonteCarloTreeSearch tree : trees) {
+					searches.add(() -> tree.searchWithTimeLimit(Integer.MAX_VALUE));
+				}
+				for (Future<Long> search : pool.invokeAll(searches)) {
+					search.get();
+				}
+			} else if (parallelization == Parallelization.TREE && nbThreads > 1) {
+				trees[0].searchWithTimeLimit(Integer.MAX_VALUE, pool, nbThreads);
+			} else {
+				trees[0].searchWithTimeLimit(Integer.MAX_VALUE);
+			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Stop the search running during the turn of the opponent, and wait for it to return.
+	 * The trees are only searched again once it has returned, even if the calling thread is interrupted.
+	 */
+	private void stopPondering() {
+		if (ponderTask == null)
+			return;
+		for (MonteCarloTreeSearch tree : trees) {
+			tree.requestStop();
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					ponderTask.get();
+					break;
+				} catch (InterruptedException e) {
+					// The search stops after its current step
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			for (MonteCarloTreeSearch tree : trees) {
+				tree.clearStopRequest();
+			}
+			ponderTask = null;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Check if a search is running during the turn of the opponent
+	 * @return <code>true</code> if the trees are being searched in the background.
+	 */
+	boolean isPondering() {
+		return ponderTask != null && !ponderTask.isDone();
+	}
+	
+	/**
+	 * Print the number of playouts kept from the previous search, if any
+	 * @param mcts: the tree about to be searched.
+	 */
+	private static void printReuse(MonteCarloTreeSearch mcts) {
+		int nbPlayouts = mcts.tree.n(NodeStore.ROOT);
+		if (nbPlayouts > 0)
+			System.out.println("Reusing a subtree of " + nbPlayouts + " playouts from the previous search");
+	}
 }
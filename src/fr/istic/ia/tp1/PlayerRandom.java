@@ -1,7 +1,5 @@
 package fr.istic.ia.tp1;
 
-import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import fr.istic.ia.tp1.Game.Move;
@@ -15,17 +13,12 @@ public class PlayerRandom implements Player {
 
 	@Override
 	public Move play(Game game) {
-		List<Move> moves = game.possibleMoves();
+		long move = game.randomMove(ThreadLocalRandom.current());
 		
-		if (moves.isEmpty())
+		if (move == 0)
 			return null;
 		
-		int randomNum = ThreadLocalRandom.current().nextInt(0, moves.size());
-		Iterator<Move> it = moves.iterator();
-		for (int i=0; i<randomNum; ++i) {
-			it.next();
-		}
-		return it.next();
+		return game.decodeMove(move);
 	}
 
 }
@@ -0,0 +1,54 @@
+package fr.istic.ia.tp1;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * The choice of the moves of the rollouts (playouts) of a MCTS search.
+ * <p>
+ * A policy is called for every move of every playout: it must not allocate, and it is used by several threads
+ * at once in parallel searches, so any scratch buffer must belong to the game (each thread plays on its own copy).
+ */
+@FunctionalInterface
+public interface PlayoutPolicy {
+
+    /**
+     * Moves drawn uniformly among the possible moves ({@link Game#randomMove})
+     */
+    PlayoutPolicy UNIFORM = Game::randomMove;
+
+    /**
+     * Moves drawn with the game knowledge of {@link Game#heuristicRandomMove} (e.g. safe moves first in draughts)
+     */
+    PlayoutPolicy HEURISTIC = Game::heuristicRandomMove;
+
+    /**
+     * Choose the next move of a playout
+     *
+     * @param game   The current state of the playout, not over
+     * @param random The random number generator of the playout
+     * @return The code of the move to play, 0 if there is no possible move
+     */
+    long nextMove(Game game, RandomGenerator random);
+
+    /**
+     * Learn from the result of a playout, called when it ends (before its moves are undone).
+     * Policies learning nothing do not override it.
+     *
+     * @param valueOne The value of the playout for {@link Game.PlayerId#ONE}: 1 for a win, 0 for a loss,
+     *                 0.5 for an equality, or an estimated probability of a win
+     */
+    default void playoutEnded(double valueOne) {
+    }
+
+    /**
+     * Learn from the results of the simulations run through a move of the search tree,
+     * called by the backpropagation of each MCTS step
+     *
+     * @param game The game state in which the move is played
+     * @param move The code of the move
+     * @param n    The number of simulations
+     * @param wins The number of simulations won by the player of the move
+     */
+    default void treeMoveResults(Game game, long move, int n, double wins) {
+    }
+}
@@ -0,0 +1,152 @@
+package fr.istic.ia.tp1;
+
+/**
+ * The tree policy of a MCTS search: the value maximized to choose the child to walk down to, which balances
+ * the estimated score of the children (exploitation) and their number of simulations (exploration).
+ * <p>
+ * The terms depending on the parent only (its logarithm or square root) are computed once per parent by
+ * {@link #parentTerm(int)}, and the search loop over the children only calls {@link #value}, which reads
+ * <code>1/sqrt(n)</code> from a table for the usual numbers of simulations ({@link #inverseSqrt(int)}).
+ */
+public interface SelectionPolicy {
+
+    /**
+     * The table of <code>1/sqrt(n)</code> for the smallest <code>n</code>
+     */
+    final class InverseSqrtTable {
+        private static final double[] VALUES = new double[4096];
+
+        static {
+            for (int n = 1; n < VALUES.length; n++)
+                VALUES[n] = 1 / Math.sqrt(n);
+        }
+
+        private InverseSqrtTable() {
+        }
+    }
+
+    /**
+     * @param n The number of simulations through a child (at least 1)
+     * @return <code>1/sqrt(n)</code>, from a table if <code>n</code> is small enough
+     */
+    static double inverseSqrt(int n) {
+        return n < InverseSqrtTable.VALUES.length ? InverseSqrtTable.VALUES[n] : 1 / Math.sqrt(n);
+    }
+
+    /**
+     * Compute the part of the values depending on the parent, once before the loop over its children
+     *
+     * @param parentN The number of simulations through the parent (at least 1)
+     * @return The parent term passed to {@link #value}
+     */
+    double parentTerm(int parentN);
+
+    /**
+     * The value of a visited child
+     *
+     * @param parentTerm The result of {@link #parentTerm(int)} for the parent
+     * @param score      The estimated probability of winning of the player choosing the child
+     * @param n          The number of simulations through the child (at least 1)
+     * @param prior      The prior probability of the child, see {@link #usesPriors()}
+     * @return The value of the child, the highest is chosen
+     */
+    double value(double parentTerm, double score, int n, double prior);
+
+    /**
+     * The value of a child never visited
+     *
+     * @param parentTerm The result of {@link #parentTerm(int)} for the parent
+     * @param prior      The prior probability of the child, see {@link #usesPriors()}
+     * @return The value of the child, infinite for the children to try before all the others
+     */
+    default double unvisitedValue(double parentTerm, double prior) {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return <code>true</code> if the policy uses the prior probabilities of the children,
+     * from the weights of their moves ({@link Game#moveWeight(long)}); otherwise all priors are 0
+     */
+    default boolean usesPriors() {
+        return false;
+    }
+
+    /**
+     * UCB1: <code>score + c * sqrt(ln(N) / n)</code>. Children never visited are tried first.
+     *
+     * @param c The exploration constant (<code>1/sqrt(2)</code> for rewards between 0 and 1)
+     * @return The policy
+     */
+    static SelectionPolicy ucb1(double c) {
+        return new SelectionPolicy() {
+            @Override
+            public double parentTerm(int parentN) {
+                return c * Math.sqrt(Math.log(parentN));
+            }
+
+            @Override
+            public double value(double parentTerm, double score, int n, double prior) {
+                return score + parentTerm * inverseSqrt(n);
+            }
+        };
+    }
+
+    /**
+     * UCB1-Tuned: <code>score + sqrt(ln(N) / n * min(1/4, V))</code>, with
+     * <code>V = variance + sqrt(2 ln(N) / n)</code>, which explores less the children whose results vary little.
+     * The variance of the results is estimated by <code>score * (1 - score)</code>, exact when there is no
+     * equality, so that the nodes need not store the sum of the squared results.
+     * Children never visited are tried first.
+     *
+     * @return The policy
+     */
+    static SelectionPolicy ucb1Tuned() {
+        double sqrt2 = Math.sqrt(2);
+        return new SelectionPolicy() {
+            @Override
+            public double parentTerm(int parentN) {
+                return Math.sqrt(Math.log(parentN));
+            }
+
+            @Override
+            public double value(double parentTerm, double score, int n, double prior) {
+                // sqrt(ln(N) / n), the only square root left being the one of min(1/4, V)
+                double sqrtLogOverN = parentTerm * inverseSqrt(n);
+                double variance = score * (1 - score) + sqrt2 * sqrtLogOverN;
+                return score + sqrtLogOverN * (variance >= 0.25 ? 0.5 : Math.sqrt(variance));
+            }
+        };
+    }
+
+    /**
+     * PUCT, the prior-weighted bound of AlphaZero: <code>score + c * prior * sqrt(N) / (1 + n)</code>.
+     * Children never visited count as a score of 0.5 (an equality), so that the priors decide which one is
+     * tried first, and whether it is tried before the visited ones.
+     *
+     * @param c The exploration constant
+     * @return The policy
+     */
+    static SelectionPolicy puct(double c) {
+        return new SelectionPolicy() {
+            @Override
+            public double parentTerm(int parentN) {
+                return c * Math.sqrt(parentN);
+            }
+
+            @Override
+            public double value(double parentTerm, double score, int n, double prior) {
+                return score + parentTerm * prior / (1 + n);
+            }
+
+            @Override
+            public double unvisitedValue(double parentTerm, double prior) {
+                return 0.5 + parentTerm * prior;
+            }
+
+            @Override
+            public boolean usesPriors() {
+                return true;
+            }
+        };
+    }
+}
@@ -1,7 +1,13 @@
 package fr.istic.ia.tp1;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -133,6 +139,28 @@ public class TestEnglishDraughts {
 		assertEquals("Duplicate moves", initMoves.size(), moves.size());
 	}
 	
+	@Test
+	public void testLongestCapture() {
+		// A white king in a corner of a 12x12 board, black pieces on all the tiles it can jump:
+		// the longest captures jump every piece once, and fit in a move code
+		EnglishDraughts draughts = new EnglishDraughts(12);
+		List<Integer> blacks = new ArrayList<>();
+		for (int x = 1; x < 11; x += 2)
+			for (int y = 1; y < 11; y += 2)
+				blacks.add(draughts.board.coordsToNumber(x, y));
+		setBoard(draughts.board, asList(), asList(draughts.board.coordsToNumber(0, 0)), blacks, asList());
+		Game.MoveBuffer codes = new Game.MoveBuffer();
+		draughts.possibleMoves(codes);
+		int maxJumps = 0;
+		for (int i = 0; i < codes.size(); i++) {
+			int jumps = (int) (codes.get(i) >>> EnglishDraughts.MOVE_JUMPS_SHIFT)
+					& ((1 << (EnglishDraughts.MOVE_DIRECTIONS_SHIFT - EnglishDraughts.MOVE_JUMPS_SHIFT)) - 1);
+			maxJumps = Math.max(maxJumps, jumps);
+		}
+		assertEquals("Every piece jumped once", blacks.size(), maxJumps);
+		assertTrue("Within a move code", maxJumps <= EnglishDraughts.MAX_JUMPS);
+	}
+	
 	@Test
 	public void testWinner() {
 		EnglishDraughts draughts = new EnglishDraughts(8);
@@ -191,4 +219,879 @@ public class TestEnglishDraughts {
 		assertTrue("Remove adversary from 8", draughts.board.isEmpty(8));
 		assertEquals("Finish in 4 and get crowned", CheckerBoard.WHITE_KING, draughts.board.get(4));
 	}
+	
+	/**
+	 * Compare the bitboard movers of a random position with a tile by tile computation
+	 */
+	static void checkMovers(CheckerBoard board, boolean white) {
+		for (int p = 1; p <= board.nbPlayableTiles(); ++p) {
+			boolean mine = white ? board.isWhite(p) : board.isBlack(p);
+			boolean up = mine && (white || board.isKing(p));
+			boolean down = mine && (!white || board.isKing(p));
+			int[] next = {
+					up ? board.neighborUpLeft(p) : 0, up ? board.neighborUpRight(p) : 0,
+					down ? board.neighborDownLeft(p) : 0, down ? board.neighborDownRight(p) : 0 };
+			int[] jump = {
+					board.neighborUpLeft(next[0]), board.neighborUpRight(next[1]),
+					board.neighborDownLeft(next[2]), board.neighborDownRight(next[3]) };
+			boolean canMove = false, canJump = false;
+			for (int d = 0; d < 4; ++d) {
+				if (next[d] <= 0) continue;
+				canMove |= board.isEmpty(next[d]);
+				canJump |= jump[d] > 0 && board.isEmpty(jump[d])
+						&& (white ? board.isBlack(next[d]) : board.isWhite(next[d]));
+			}
+			int word = (p - 1) / 64;
+			long bit = 1L << ((p - 1) % 64);
+			assertEquals("Move of " + p + " in " + board, canMove, (board.movablePieces(white, word) & bit) != 0);
+			assertEquals("Jump of " + p + " in " + board, canJump, (board.capturingPieces(white, word) & bit) != 0);
+		}
+	}
+	
+	@Test
+	public void testBitboardMovers() {
+		Random random = new Random(42);
+		byte[] pawns = { CheckerBoard.EMPTY, CheckerBoard.WHITE_CHECKER, CheckerBoard.WHITE_KING, 
+				CheckerBoard.BLACK_CHECKER, CheckerBoard.BLACK_KING };
+		for (int size = 4; size <= 12; size += 2) {
+			for (int k = 0; k < 50; ++k) {
+				CheckerBoard board = new CheckerBoard(size);
+				for (int i = 1; i <= board.nbPlayableTiles(); ++i) {
+					board.set(i, pawns[random.nextInt(pawns.length)]);
+				}
+				checkMovers(board, true);
+				checkMovers(board, false);
+			}
+		}
+	}
+	
+	@Test
+	public void testPawnCounts() {
+		Random random = new Random(3);
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		while (draughts.winner() == null) {
+			List<Game.Move> moves = draughts.possibleMoves();
+			draughts.play(moves.get(random.nextInt(moves.size())));
+			for (boolean white : new boolean[] { true, false }) {
+				List<Integer> pawns = white ? draughts.board.getWhitePawns() : draughts.board.getBlackPawns();
+				int nbKings = 0;
+				for (int p : pawns) {
+					if (draughts.board.isKing(p)) ++nbKings;
+				}
+				assertEquals("Number of pawns", pawns.size(), draughts.board.nbPawns(white));
+				assertEquals("Number of kings", nbKings, draughts.board.nbKings(white));
+				int i = 0;
+				for (int p = draughts.board.nextPawn(white, 0); p != 0; p = draughts.board.nextPawn(white, p)) {
+					assertEquals("Pawn iteration", (int) pawns.get(i++), p);
+				}
+				assertEquals("Pawn iteration length", pawns.size(), i);
+			}
+		}
+	}
+	
+	@Test
+	public void testZobristHash() {
+		Random random = new Random(11);
+		for (int size = 6; size <= 12; size += 2) {
+			for (int k = 0; k < 5; ++k) {
+				EnglishDraughts draughts = new EnglishDraughts(size);
+				while (draughts.winner() == null) {
+					assertEquals("Incremental hash", draughts.computeZobristKey(), draughts.zobristKey());
+					EnglishDraughts copy = draughts.clone();
+					assertEquals("Copy hash", draughts.zobristKey(), copy.zobristKey());
+					assertEquals("Copy equality", draughts, copy);
+					List<Game.Move> moves = draughts.possibleMoves();
+					draughts.play(moves.get(random.nextInt(moves.size())));
+				}
+				assertEquals("Final incremental hash", draughts.computeZobristKey(), draughts.zobristKey());
+			}
+		}
+		
+		// The same pieces with blacks then whites to move (after 22-18, and set up directly)
+		EnglishDraughts blacksToMove = new EnglishDraughts(8);
+		blacksToMove.play(newMove(blacksToMove, asList(22,18)));
+		EnglishDraughts whitesToMove = new EnglishDraughts(8);
+		setBoard(whitesToMove.board, asList(18,21,23,24,25,26,27,28,29,30,31,32), asList(),
+				asList(1,2,3,4,5,6,7,8,9,10,11,12), asList());
+		assertEquals("Same pieces", blacksToMove.board, whitesToMove.board);
+		assertEquals("Same pieces hash", blacksToMove.board.zobristKey(), whitesToMove.board.zobristKey());
+		assertEquals("Hash with blacks to move", blacksToMove.computeZobristKey(), blacksToMove.zobristKey());
+		assertEquals("Hash with whites to move", whitesToMove.computeZobristKey(), whitesToMove.zobristKey());
+		assertNotEquals("Side to move is hashed", blacksToMove.zobristKey(), whitesToMove.zobristKey());
+	}
+	
+	@Test
+	public void testMoveCodes() {
+		// Codes built from the documented layout: origin, number of jumps, directions of the steps
+		int up = EnglishDraughts.MOVE_DIRECTIONS_SHIFT;
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		HashSet<Long> expected = new HashSet<>(asList(
+				21L | (long) CheckerBoard.Geometry.UP_RIGHT << up,
+				22L | (long) CheckerBoard.Geometry.UP_LEFT << up,
+				22L | (long) CheckerBoard.Geometry.UP_RIGHT << up,
+				23L | (long) CheckerBoard.Geometry.UP_LEFT << up,
+				23L | (long) CheckerBoard.Geometry.UP_RIGHT << up,
+				24L | (long) CheckerBoard.Geometry.UP_LEFT << up,
+				24L | (long) CheckerBoard.Geometry.UP_RIGHT << up));
+		Game.MoveBuffer codes = new Game.MoveBuffer(1);
+		assertEquals("Number of codes", expected.size(), draughts.possibleMoves(codes));
+		HashSet<Long> actual = new HashSet<>();
+		for (int i = 0; i < codes.size(); ++i)
+			actual.add(codes.get(i));
+		assertEquals("Codes of the first moves", expected, actual);
+		long move = 22L | (long) CheckerBoard.Geometry.UP_RIGHT << up;
+		assertEquals("Encode a simple move", move, draughts.encodeMove(newMove(draughts, asList(22,18))));
+		assertEquals("Decode a simple move", newMove(draughts, asList(22,18)), draughts.decodeMove(move));
+		
+		// The only move is a capture: 18 jumps over 15 to 11
+		draughts.play(move);
+		draughts.play(newMove(draughts, asList(11,15)));
+		long capture = 18L | 1L << EnglishDraughts.MOVE_JUMPS_SHIFT | (long) CheckerBoard.Geometry.UP_RIGHT << up;
+		assertEquals("Forced capture", 1, draughts.possibleMoves(codes));
+		assertEquals("Code of the capture", capture, codes.get(0));
+		assertEquals("Encode a capture", capture, draughts.encodeMove(newMove(draughts, asList(18,11))));
+		assertEquals("Decode a capture", newMove(draughts, asList(18,11)), draughts.decodeMove(capture));
+		
+		// Encoding and decoding are inverse on all the moves of random games
+		Random random = new Random(5);
+		for (int size = 6; size <= 12; size += 2) {
+			draughts = new EnglishDraughts(size);
+			while (draughts.winner() == null) {
+				draughts.possibleMoves(codes);
+				for (int i = 0; i < codes.size(); ++i)
+					assertEquals("Encoding", codes.get(i), draughts.encodeMove(draughts.decodeMove(codes.get(i))));
+				draughts.play(codes.get(random.nextInt(codes.size())));
+			}
+		}
+	}
+	
+	@Test
+	public void testUndo() {
+		Random random = new Random(17);
+		for (int size = 6; size <= 12; size += 2) {
+			EnglishDraughts draughts = new EnglishDraughts(size);
+			ArrayList<String> states = new ArrayList<>();
+			ArrayList<Integer> kingMoves = new ArrayList<>();
+			while (draughts.winner() == null) {
+				states.add(draughts.toString());
+				kingMoves.add(draughts.nbKingMovesWithoutCapture);
+				List<Game.Move> moves = draughts.possibleMoves();
+				draughts.play(moves.get(random.nextInt(moves.size())));
+			}
+			for (int i = states.size() - 1; i >= 0; --i) {
+				draughts.undo();
+				assertEquals("Undo state", states.get(i), draughts.toString());
+				assertEquals("Undo king moves counter", (int) kingMoves.get(i), draughts.nbKingMovesWithoutCapture);
+				assertEquals("Undo hash", draughts.computeZobristKey(), draughts.zobristKey());
+			}
+			assertEquals("Back to the start", new EnglishDraughts(size), draughts);
+		}
+	}
+	
+	@Test
+	public void testMovesCacheSharedByCopies() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		List<Game.Move> initMoves = draughts.possibleMoves();
+		assertEquals("Game is not finished yet", null, draughts.winner());
+		
+		EnglishDraughts copy = draughts.clone();
+		copy.play(newMove(copy, asList(21, 17)));
+		assertEquals("Copy moves after a play", PlayerId.TWO, copy.player());
+		assertEquals("Copy black moves", 7, copy.possibleMoves().size());
+		copy.play(newMove(copy, asList(9, 13)));
+		EnglishDraughts fresh = new EnglishDraughts(8);
+		fresh.play(newMove(fresh, asList(21, 17)));
+		fresh.play(newMove(fresh, asList(9, 13)));
+		assertEquals("Copy white moves", fresh.possibleMoves(), copy.possibleMoves());
+		
+		assertEquals("Original moves unchanged", initMoves, draughts.possibleMoves());
+		draughts.play(newMove(draughts, asList(24, 20)));
+		copy.undo();
+		copy.undo();
+		assertEquals("Copy moves after undo", initMoves, copy.possibleMoves());
+	}
+	
+	@Test
+	public void testHasAnyMove() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(16,18,19), asList(7), asList(11,15), asList(24));
+		assertTrue("Capture 19x10", draughts.hasAnyCapture());
+		assertTrue("Some move", draughts.hasAnyMove());
+		
+		// White checker blocked by two black checkers in a row
+		setBoard(draughts.board, asList(29), asList(), asList(25,22), asList());
+		assertFalse("No capture", draughts.hasAnyCapture());
+		assertFalse("No move", draughts.hasAnyMove());
+		assertEquals("Blocked whites lose", PlayerId.TWO, draughts.winner());
+	}
+	
+	/**
+	 * Draw many random moves (without the moves cache) and check they follow the uniform distribution
+	 */
+	static void checkRandomMoves(EnglishDraughts draughts, List<Game.Move> expected) {
+		Random random = new Random(23);
+		int nbDraws = 1000 * expected.size();
+		HashMap<Game.Move, Integer> counts = new HashMap<>();
+		for (int i = 0; i < nbDraws; ++i) {
+			Game.Move move = draughts.decodeMove(draughts.randomMove(random));
+			assertTrue("Legal random move " + move, expected.contains(move));
+			counts.merge(move, 1, Integer::sum);
+		}
+		for (Game.Move move : expected) {
+			int count = counts.getOrDefault(move, 0);
+			assertTrue("Uniform draw of " + move + ": " + count, count > 850 && count < 1150);
+		}
+	}
+	
+	@Test
+	public void testRandomMove() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		checkRandomMoves(draughts, asList(
+				newMove(draughts, asList(21,17)),
+				newMove(draughts, asList(22,17)),
+				newMove(draughts, asList(22,18)),
+				newMove(draughts, asList(23,18)),
+				newMove(draughts, asList(23,19)),
+				newMove(draughts, asList(24,19)),
+				newMove(draughts, asList(24,20))));
+		
+		draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(18,19), asList(1), asList(6,8,15), asList(7));
+		checkRandomMoves(draughts, asList( 
+				newMove(draughts, asList(1,10,3,12)),
+				newMove(draughts, asList(19,10,3)),
+				newMove(draughts, asList(18,11,2)),
+				newMove(draughts, asList(18,11,4)) ));
+	}
+	
+	@Test
+	public void testParallelRollOut() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		draughts.play(newMove(draughts, asList(21,17)));
+		EnglishDraughts before = draughts.clone();
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			MonteCarloTreeSearch.RolloutResults res = MonteCarloTreeSearch.rollOut(draughts, 50, new Random(1), pool);
+			assertEquals("All playouts counted", 50, res.n);
+			assertEquals("Game restored", before, draughts);
+			assertEquals("Same player", before.player(), draughts.player());
+			
+			// No black piece left: every split of the batch reports its wins for white
+			setBoard(draughts.board, asList(22), asList(), asList(), asList());
+			res = MonteCarloTreeSearch.rollOut(draughts, 50, new Random(2), pool);
+			assertEquals("All playouts counted", 50, res.n);
+			assertEquals("White wins every playout", 50.0, res.win1, 0.0);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testRootParallelMerge() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		MonteCarloTreeSearch[] trees = new MonteCarloTreeSearch[3];
+		for (int i = 0; i < trees.length; i++) {
+			trees[i] = new MonteCarloTreeSearch(draughts, new Random(10 + i));
+			for (int step = 0; step < 20 * (i + 1); step++)
+				trees[i].evaluateTreeOnce();
+		}
+		
+		// The merged root and children hold the sums of the statistics of the trees, matched by move
+		MonteCarloTreeSearch merged = MonteCarloTreeSearch.merge(trees);
+		int n = 0;
+		double w = 0;
+		int nTotal = 0;
+		for (MonteCarloTreeSearch mcts : trees) {
+			n += mcts.tree.n(NodeStore.ROOT);
+			w += mcts.tree.w(NodeStore.ROOT);
+			nTotal += mcts.nTotal;
+		}
+		assertEquals("Root simulations", n, merged.tree.n(NodeStore.ROOT));
+		assertEquals("Root wins", w, merged.tree.w(NodeStore.ROOT), 1e-9);
+		assertEquals("Playouts", nTotal, merged.nTotal);
+		int first = merged.tree.firstChild(NodeStore.ROOT);
+		assertEquals("One child per move", 7, merged.tree.nbChildren(NodeStore.ROOT));
+		for (int child = first; child < first + merged.tree.nbChildren(NodeStore.ROOT); child++) {
+			long move = merged.tree.move(child);
+			int childN = 0;
+			double childW = 0;
+			for (MonteCarloTreeSearch mcts : trees) {
+				int treeFirst = mcts.tree.firstChild(NodeStore.ROOT);
+				for (int c = treeFirst; c < treeFirst + mcts.tree.nbChildren(NodeStore.ROOT); c++) {
+					if (mcts.tree.move(c) == move) {
+						childN += mcts.tree.n(c);
+						childW += mcts.tree.w(c);
+					}
+				}
+			}
+			assertEquals("Child simulations", childN, merged.tree.n(child));
+			assertEquals("Child wins", childW, merged.tree.w(child), 1e-9);
+		}
+		assertEquals("Game of the trees", draughts, merged.game);
+	}
+	
+	/**
+	 * Count the nodes of a subtree with a virtual loss
+	 */
+	static int nbVirtualLosses(NodeStore tree, int node) {
+		int count = tree.virtualLoss(node) != 0 ? 1 : 0;
+		int first = tree.firstChild(node);
+		if (first != NodeStore.NONE) {
+			for (int child = first; child < first + tree.nbChildren(node); child++)
+				count += nbVirtualLosses(tree, child);
+		}
+		return count;
+	}
+	
+	@Test
+	public void testTreeParallelSearch() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(6));
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			mcts.searchWithTimeLimit(200, pool, 4);
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue("Searched", mcts.nTotal > 0);
+		assertEquals("Every playout reaches the root", mcts.nTotal, mcts.tree.n(NodeStore.ROOT));
+		assertEquals("Virtual loss removed", 0, nbVirtualLosses(mcts.tree, NodeStore.ROOT));
+		assertEquals("Root state unchanged", draughts, mcts.game);
+	}
+	
+	@Test
+	public void testTruncatedRollOut() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		assertEquals("Advancement", 12, draughts.board.advancement(true));
+		assertEquals("Symmetric advancement", 12, draughts.board.advancement(false));
+		assertEquals("Back rank guards", 4, draughts.board.backRankGuards(false));
+		assertEquals("Symmetric position", 0.5, draughts.evaluate(), 1e-9);
+		
+		// Cut rollouts are evaluated, and the game is restored
+		draughts.play(newMove(draughts, asList(21,17)));
+		EnglishDraughts before = draughts.clone();
+		MonteCarloTreeSearch.RolloutResults res = MonteCarloTreeSearch.rollOut(draughts, 50, new Random(1),
+				PlayoutPolicy.UNIFORM, 4);
+		assertEquals("All playouts counted", 50, res.n);
+		assertEquals("Values sum to the number of playouts", 50.0, res.win1 + res.win2, 1e-9);
+		assertTrue("Fractional wins", res.win1 != Math.rint(res.win1));
+		assertEquals("Game restored", before, draughts);
+		
+		// Material and kings
+		setBoard(draughts.board, asList(22,23), asList(), asList(10), asList());
+		assertTrue("Extra checker", draughts.evaluate() > 0.5);
+		double checkers = draughts.evaluate();
+		setBoard(draughts.board, asList(22), asList(23), asList(10), asList());
+		assertTrue("King worth more than a checker", draughts.evaluate() > checkers);
+		setBoard(draughts.board, asList(), asList(), asList(10), asList(1));
+		assertTrue("Blacks ahead", draughts.evaluate() < 0.5);
+	}
+	
+	@Test
+	public void testHeuristicPlayouts() {
+		// 22-17 can be taken back by 13x22, 22-18 is safe
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(22), asList(), asList(13), asList());
+		assertTrue("Recapture over the vacated tile", draughts.board.isThreatened(17, true, 22));
+		assertFalse("Landing tile taken", draughts.board.isThreatened(17, true, 0));
+		assertFalse("Safe tile", draughts.board.isThreatened(18, true, 22));
+		
+		long safe = draughts.encodeMove(newMove(draughts, asList(22,18)));
+		Random random = new Random(2);
+		int nbSafe = 0;
+		for (int i = 0; i < 1000; i++) {
+			long move = PlayoutPolicy.HEURISTIC.nextMove(draughts, random);
+			assertTrue("Possible move", move == safe || move == draughts.encodeMove(newMove(draughts, asList(22,17))));
+			if (move == safe)
+				nbSafe++;
+		}
+		assertTrue("Safe move favoured", nbSafe > 700 && nbSafe < 900);
+		
+		// A forced capture is played even if it is not safe, and there is no move without pieces
+		draughts = new EnglishDraughts(8);
+		draughts.play(newMove(draughts, asList(22,18)));
+		draughts.play(newMove(draughts, asList(11,15)));
+		assertEquals("Forced capture", draughts.encodeMove(newMove(draughts, asList(18,11))),
+				PlayoutPolicy.HEURISTIC.nextMove(draughts, random));
+		draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(), asList(), asList(10), asList());
+		assertEquals("No move", 0, PlayoutPolicy.HEURISTIC.nextMove(draughts, random));
+	}
+	
+	@Test
+	public void testMast() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(22), asList(), asList(13), asList());
+		long left = draughts.encodeMove(newMove(draughts, asList(22,17)));
+		long right = draughts.encodeMove(newMove(draughts, asList(22,18)));
+		assertNotEquals("Move keys", draughts.moveKey(left), draughts.moveKey(right));
+		
+		MastPolicy mast = MastPolicy.epsilonGreedy(0.0);
+		assertEquals("Never tried", 0.5, mast.average(draughts, right), 0.0);
+		mast.treeMoveResults(draughts, left, 10, 0.0);
+		mast.treeMoveResults(draughts, right, 10, 10.0);
+		Random random = new Random(4);
+		for (int i = 0; i < 10; i++)
+			assertEquals("Greedy move", right, mast.nextMove(draughts, random));
+		
+		// Every move of the playout is updated with its result, for the player of the move
+		mast.playoutEnded(0.0);
+		assertEquals("Lost playouts", 10.0 / 20, mast.average(draughts, right), 1e-9);
+		assertEquals("Unchanged move", 0.0, mast.average(draughts, left), 0.0);
+		
+		// A search feeds the table with the moves of its tree and of its playouts
+		draughts = new EnglishDraughts(8);
+		mast = MastPolicy.gibbs(0.2);
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(5));
+		mcts.setPlayoutPolicy(mast);
+		mcts.setRolloutDepth(20);
+		for (int i = 0; i < 20; i++)
+			mcts.evaluateTreeOnce();
+		NodeStore tree = mcts.tree;
+		int first = tree.firstChild(NodeStore.ROOT);
+		for (int child = first; child < first + tree.nbChildren(NodeStore.ROOT); child++) {
+			long move = tree.move(child);
+			assertTrue("Simulations of the tree learnt", mast.nbSimulations(draughts, move) >= tree.n(child));
+			assertTrue("Moves learnt", mast.nbSimulations(draughts, move) > 0);
+			assertTrue("Averages learnt", mast.average(draughts, move) != 0.5);
+		}
+	}
+	
+	@Test
+	public void testRave() {
+		NodeStore store = new NodeStore(Integer.MAX_VALUE, false, true, false);
+		Game.MoveBuffer moves = new Game.MoveBuffer();
+		moves.add(1);
+		moves.add(2);
+		store.expand(NodeStore.ROOT, moves);
+		int child = store.firstChild(NodeStore.ROOT);
+		store.addAmaf(child, 10, 3.0);
+		store.complementWins(NodeStore.ROOT);
+		assertEquals("AMAF wins of the other player", 7.0, store.amafW(child), 0.0);
+		
+		// Every simulation through a child of the root plays its move first
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(9));
+		mcts.setRave(1000);
+		for (int i = 0; i < 30; i++)
+			mcts.evaluateTreeOnce();
+		assertEquals("Game restored", draughts, mcts.game);
+		NodeStore tree = mcts.tree;
+		int first = tree.firstChild(NodeStore.ROOT);
+		boolean shared = false;
+		for (child = first; child < first + tree.nbChildren(NodeStore.ROOT); child++) {
+			assertTrue("AMAF includes the visits", tree.amafN(child) >= tree.n(child));
+			assertTrue("AMAF wins", tree.amafW(child) <= tree.amafN(child));
+			shared |= tree.amafN(child) > tree.n(child);
+		}
+		assertTrue("Moves played later inform their siblings", shared);
+		
+		// The AMAF statistics count in the memory budget of the tree
+		long budget = 1 << 20;
+		mcts = new MonteCarloTreeSearch(draughts, new Random(9), budget);
+		int plainNodes = mcts.tree.maxNodes();
+		mcts.setRave(1000);
+		assertTrue("Fewer nodes with AMAF", mcts.tree.maxNodes() < plainNodes);
+		assertTrue("Nodes within the budget",
+				(long) mcts.tree.maxNodes() * NodeStore.bytesPerNode(false, true, false) <= budget);
+	}
+	
+	@Test
+	public void testSelectionPolicies() {
+		SelectionPolicy ucb1 = SelectionPolicy.ucb1(1 / Math.sqrt(2));
+		double term = ucb1.parentTerm(100);
+		assertEquals("UCB1", 0.6 + Math.sqrt(Math.log(100) / 2 / 10), ucb1.value(term, 0.6, 10, 0), 1e-12);
+		assertEquals("Unvisited children first", Double.POSITIVE_INFINITY, ucb1.unvisitedValue(term, 0), 0.0);
+		assertEquals("No exploration from a single simulation", 0.6, ucb1.value(ucb1.parentTerm(1), 0.6, 1, 0), 0.0);
+		
+		// UCB1-Tuned explores at most like UCB1 with c = 1/2, and less the children with few equalities
+		SelectionPolicy tuned = SelectionPolicy.ucb1Tuned();
+		double bound = SelectionPolicy.ucb1(0.5).value(SelectionPolicy.ucb1(0.5).parentTerm(1000), 0.95, 500, 0);
+		assertTrue("UCB1-Tuned bound", tuned.value(tuned.parentTerm(1000), 0.95, 500, 0) < bound);
+		double logOverN = Math.log(1000) / 500;
+		assertEquals("UCB1-Tuned", 0.95 + Math.sqrt(logOverN * Math.min(0.25, 0.95 * 0.05 + Math.sqrt(2 * logOverN))),
+				tuned.value(tuned.parentTerm(1000), 0.95, 500, 0), 1e-12);
+		
+		// 1/sqrt(n) from the table, and beyond it
+		for (int n : new int[] { 1, 2, 4095, 4096, 100000 })
+			assertEquals("Inverse square root", 1 / Math.sqrt(n), SelectionPolicy.inverseSqrt(n), 1e-15);
+		assertEquals("UCB1 beyond the table", 0.6 + Math.sqrt(Math.log(1e6) / 2 / 1e5),
+				ucb1.value(ucb1.parentTerm(1000000), 0.6, 100000, 0), 1e-12);
+		
+		// PUCT tries first the unvisited children with the highest prior
+		SelectionPolicy puct = SelectionPolicy.puct(1);
+		assertTrue("Priors", puct.usesPriors());
+		term = puct.parentTerm(16);
+		assertTrue("Highest prior first", puct.unvisitedValue(term, 0.6) > puct.unvisitedValue(term, 0.4));
+		assertEquals("PUCT", 0.5 + 4 * 0.2 / 3, puct.value(term, 0.5, 2, 0.2), 1e-12);
+		
+		// Moves giving a piece away weigh less
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		draughts.play(newMove(draughts, asList(22,18)));
+		assertTrue("Safe move", draughts.moveWeight(draughts.encodeMove(newMove(draughts, asList(10,14))))
+				> draughts.moveWeight(draughts.encodeMove(newMove(draughts, asList(9,14)))));
+		
+		// Robust child: the move played is the most simulated one
+		draughts = new EnglishDraughts(8);
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(5));
+		mcts.setSelectionPolicy(puct);
+		for (int i = 0; i < 200; i++)
+			mcts.evaluateTreeOnce();
+		assertEquals("Game restored", draughts, mcts.game);
+		NodeStore tree = mcts.tree;
+		int first = tree.firstChild(NodeStore.ROOT);
+		int mostVisited = first;
+		for (int child = first; child < first + tree.nbChildren(NodeStore.ROOT); child++) {
+			if (tree.n(child) > tree.n(mostVisited))
+				mostVisited = child;
+		}
+		assertEquals("Robust child", draughts.decodeMove(tree.move(mostVisited)).toString(), mcts.getBestMove().toString());
+		
+		// The priors are stored once, when the node is expanded
+		double total = 0;
+		double weights = 0;
+		for (int child = first; child < first + tree.nbChildren(NodeStore.ROOT); child++)
+			weights += draughts.moveWeight(tree.move(child));
+		for (int child = first; child < first + tree.nbChildren(NodeStore.ROOT); child++) {
+			assertEquals("Prior", draughts.moveWeight(tree.move(child)) / weights, tree.prior(child), 1e-6);
+			total += tree.prior(child);
+		}
+		assertEquals("Priors sum", 1.0, total, 1e-6);
+		long budget = 1 << 20;
+		mcts = new MonteCarloTreeSearch(draughts, new Random(5), budget);
+		int plainNodes = mcts.tree.maxNodes();
+		mcts.setSelectionPolicy(puct);
+		assertTrue("Fewer nodes with priors", mcts.tree.maxNodes() < plainNodes);
+		assertTrue("Nodes within the budget",
+				(long) mcts.tree.maxNodes() * NodeStore.bytesPerNode(false, false, true) <= budget);
+		
+		// Before any simulation, a move not proven lost is played
+		mcts = new MonteCarloTreeSearch(draughts, new Random(5));
+		Game.MoveBuffer moves = new Game.MoveBuffer();
+		draughts.possibleMoves(moves);
+		mcts.tree.expand(NodeStore.ROOT, moves);
+		first = mcts.tree.firstChild(NodeStore.ROOT);
+		mcts.tree.setProven(first, NodeStore.PROVEN_LOSS);
+		assertEquals("Not a proven loss", draughts.decodeMove(moves.get(1)).toString(), mcts.getBestMove().toString());
+		for (int child = first; child < first + moves.size(); child++)
+			mcts.tree.setProven(child, NodeStore.PROVEN_LOSS);
+		assertEquals("All moves lost", draughts.decodeMove(moves.get(0)).toString(), mcts.getBestMove().toString());
+	}
+	
+	@Test
+	public void testNodeStore() {
+		NodeStore tree = new NodeStore();
+		assertEquals("Root only", 1, tree.size());
+		assertEquals("Root not expanded", NodeStore.NONE, tree.firstChild(NodeStore.ROOT));
+		
+		// Children spanning several pages
+		Game.MoveBuffer moves = new Game.MoveBuffer();
+		for (long move = 1; move <= 10000; move++)
+			moves.add(move);
+		assertTrue("Expanded", tree.expand(NodeStore.ROOT, moves));
+		assertFalse("Already expanded", tree.expand(NodeStore.ROOT, moves));
+		int first = tree.firstChild(NodeStore.ROOT);
+		assertEquals("Children count", 10000, tree.nbChildren(NodeStore.ROOT));
+		for (int i = 0; i < 10000; i++) {
+			assertEquals("Child move", i + 1, tree.move(first + i));
+			assertEquals("Child not expanded", NodeStore.NONE, tree.firstChild(first + i));
+		}
+		
+		tree.addStats(first + 9999, 3, 1.5);
+		tree.addStats(first + 9999, 2, 1.0);
+		assertEquals("Visits", 5, tree.n(first + 9999));
+		assertEquals("Wins", 2.5, tree.w(first + 9999), 0.0);
+		tree.addVirtualLoss(first, 100);
+		tree.addVirtualLoss(first, -100);
+		assertEquals("Virtual loss removed", 0, tree.virtualLoss(first));
+	}
+	
+	@Test
+	public void testNodeBudget() {
+		NodeStore tree = new NodeStore(10);
+		Game.MoveBuffer moves = new Game.MoveBuffer();
+		for (long move = 1; move <= 5; move++)
+			moves.add(move);
+		assertTrue("Root expanded", tree.expand(NodeStore.ROOT, moves));
+		int first = tree.firstChild(NodeStore.ROOT);
+		assertFalse("Over budget", tree.expand(first, moves));
+		assertEquals("Left unexpanded", NodeStore.NONE, tree.firstChild(first));
+		
+		moves.clear();
+		moves.add(7);
+		assertTrue("Within budget", tree.expand(first, moves));
+		tree.addStats(first, 4, 2.0);
+		tree.collapse(first);
+		assertEquals("Collapsed", NodeStore.NONE, tree.firstChild(first));
+		assertEquals("Stats kept", 4, tree.n(first));
+		assertEquals("Nodes in use", 6, tree.liveNodes());
+		
+		// The freed node is reused, with fresh statistics
+		moves.clear();
+		moves.add(8);
+		int size = tree.size();
+		assertTrue("Expanded again", tree.expand(first + 1, moves));
+		assertEquals("Node reused", size, tree.size());
+		int child = tree.firstChild(first + 1);
+		assertEquals("Move of the reused node", 8, tree.move(child));
+		assertEquals("Fresh stats", 0, tree.n(child));
+		
+		// Once all the budget is allocated, free blocks are split and merged
+		tree = new NodeStore(12);
+		moves.clear();
+		for (long move = 1; move <= 5; move++)
+			moves.add(move);
+		assertTrue("Root expanded", tree.expand(NodeStore.ROOT, moves));
+		moves.clear();
+		for (long move = 1; move <= 3; move++)
+			moves.add(move);
+		assertTrue("First child expanded", tree.expand(1, moves));
+		assertTrue("Second child expanded", tree.expand(2, moves));
+		assertEquals("All the budget allocated", 12, tree.size());
+		tree.collapse(1);
+		tree.collapse(2);
+		moves.add(4);
+		assertTrue("Adjacent free blocks merged", tree.expand(3, moves));
+		moves.clear();
+		moves.add(1);
+		assertTrue("Larger free block split", tree.expand(4, moves));
+		assertEquals("Nodes in use", 11, tree.liveNodes());
+		assertEquals("No node allocated", 12, tree.size());
+		
+		// A freed block is merged with the free blocks before and after it
+		tree = new NodeStore(10);
+		moves.clear();
+		for (long move = 1; move <= 3; move++)
+			moves.add(move);
+		assertTrue("Root expanded", tree.expand(NodeStore.ROOT, moves));
+		moves.clear();
+		moves.add(1);
+		moves.add(2);
+		for (int node = 1; node <= 3; node++)
+			assertTrue("Child expanded", tree.expand(node, moves));
+		tree.collapse(1);
+		tree.collapse(3);
+		tree.collapse(2);
+		moves.clear();
+		for (long move = 1; move <= 6; move++)
+			moves.add(move);
+		assertTrue("Three blocks merged", tree.expand(1, moves));
+		assertEquals("Merged block reused", 4, tree.firstChild(1));
+		assertEquals("No node allocated", 10, tree.size());
+		
+		// Large blocks are found by size class, and split
+		tree = new NodeStore(1 + 2 + 70 + 80);
+		moves.clear();
+		moves.add(1);
+		moves.add(2);
+		assertTrue("Root expanded", tree.expand(NodeStore.ROOT, moves));
+		for (int node = 1; node <= 2; node++) {
+			moves.clear();
+			for (long move = 1; move <= (node == 1 ? 70 : 80); move++)
+				moves.add(move);
+			assertTrue("Child expanded", tree.expand(node, moves));
+		}
+		tree.collapse(1);
+		tree.collapse(2);
+		moves.clear();
+		for (long move = 1; move <= 100; move++)
+			moves.add(move);
+		assertTrue("Large block taken", tree.expand(1, moves));
+		moves.clear();
+		for (long move = 1; move <= 50; move++)
+			moves.add(move);
+		assertTrue("Rest of the block taken", tree.expand(2, moves));
+		assertEquals("All the budget in use", 153, tree.liveNodes());
+		assertEquals("No node allocated", 153, tree.size());
+		
+		// A search within a small budget
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(new EnglishDraughts(8), new Random(2), 200 * NodeStore.BYTES_PER_NODE);
+		mcts.setRolloutDepth(10);
+		for (int i = 0; i < 1000; i++)
+			mcts.evaluateTreeOnce();
+		assertTrue("Budget kept", mcts.tree.liveNodes() <= 200);
+		assertTrue("Allocated nodes within the budget", mcts.tree.size() <= 200);
+		assertTrue("Subtrees collapsed", mcts.tree.nbCollapsed() > 0);
+		assertEquals("Root stats kept", 1000 * MonteCarloTreeSearch.NB_ROLLOUTS_PER_STEP, mcts.tree.n(NodeStore.ROOT));
+	}
+	
+	@Test
+	public void testLazyExpansion() {
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(new EnglishDraughts(8), new Random(3));
+		mcts.setLazyExpansion(true, 0.0);
+		NodeStore tree = mcts.tree;
+		mcts.evaluateTreeOnce();
+		int first = tree.firstChild(NodeStore.ROOT);
+		assertEquals("All moves cached", 7, tree.nbChildren(NodeStore.ROOT));
+		assertEquals("One child opened", 1, tree.nbOpened(NodeStore.ROOT));
+		assertEquals("First child simulated", tree.n(NodeStore.ROOT), tree.n(first));
+		for (int i = 2; i <= 7; i++) {
+			mcts.evaluateTreeOnce();
+			assertEquals("One child opened per visit", i, tree.nbOpened(NodeStore.ROOT));
+		}
+		
+		// A thread losing the race to expand a node does not touch it
+		Game.MoveBuffer moves = new Game.MoveBuffer();
+		moves.add(1);
+		moves.add(2);
+		assertTrue("Expanded", tree.expand(first, moves));
+		assertTrue("Child opened", tree.open(first, 0));
+		int liveNodes = tree.liveNodes();
+		assertFalse("Expanded by another thread", tree.expand(first, moves));
+		assertEquals("Opened child kept", 1, tree.nbOpened(first));
+		assertEquals("Children of the loser freed", liveNodes, tree.liveNodes());
+		
+		// A collapsed node can be expanded again
+		tree.collapse(first);
+		assertEquals("No children", 0, tree.nbChildren(first));
+		assertTrue("Expanded again", tree.expand(first, moves));
+		assertEquals("No child opened", 0, tree.nbOpened(first));
+		
+		// Progressive widening
+		mcts = new MonteCarloTreeSearch(new EnglishDraughts(8), new Random(3));
+		mcts.setLazyExpansion(true, 1.0);
+		for (int i = 0; i < 9; i++)
+			mcts.evaluateTreeOnce();
+		assertEquals("Widening after 9 steps", 1 + 2, mcts.tree.nbOpened(NodeStore.ROOT));
+		mcts.evaluateTreeOnce();
+		assertEquals("Widening at the 10th step", 1 + 3, mcts.tree.nbOpened(NodeStore.ROOT));
+	}
+	
+	@Test
+	public void testSubtreeReuse() {
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(4));
+		for (int i = 0; i < 200; i++)
+			mcts.evaluateTreeOnce();
+		NodeStore tree = mcts.tree;
+		
+		// Find an expanded grandchild of the root
+		int child = tree.firstChild(NodeStore.ROOT);
+		while (tree.firstChild(child) == NodeStore.NONE)
+			child++;
+		int grandChild = tree.firstChild(child);
+		int n = tree.n(grandChild);
+		double w = tree.w(grandChild);
+		int nbChildren = tree.nbChildren(grandChild);
+		draughts.play(tree.move(child));
+		draughts.play(tree.move(grandChild));
+		
+		assertTrue("Grandchild found", mcts.advanceTo(draughts));
+		assertEquals("Root state", draughts, mcts.game);
+		assertEquals("Root visits kept", n, tree.n(NodeStore.ROOT));
+		assertEquals("Root wins kept", w, tree.w(NodeStore.ROOT), 0.0);
+		assertEquals("Children kept", nbChildren, tree.nbChildren(NodeStore.ROOT));
+		assertTrue("Rest of the tree released", tree.liveNodes() < tree.size());
+		assertTrue("Same state", mcts.advanceTo(draughts));
+		for (int i = 0; i < 10; i++)
+			mcts.evaluateTreeOnce();
+		assertEquals("Search goes on", n + 10 * MonteCarloTreeSearch.NB_ROLLOUTS_PER_STEP, tree.n(NodeStore.ROOT));
+		
+		// One move: the wins are counted for the other player
+		child = tree.firstChild(NodeStore.ROOT);
+		n = tree.n(child);
+		w = tree.w(child);
+		draughts.play(tree.move(child));
+		assertTrue("Child found", mcts.advanceTo(draughts));
+		assertEquals("Wins of the other player", n - w, tree.w(NodeStore.ROOT), 0.0);
+		
+		assertFalse("Unrelated state", mcts.advanceTo(new EnglishDraughts(8)));
+		assertEquals("Root state unchanged", draughts, mcts.game);
+	}
+	
+	@Test
+	public void testPondering() {
+		PlayerMCTS player = new PlayerMCTS(50);
+		player.setRolloutDepth(10);
+		player.setPondering(true);
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		Random random = new Random(8);
+		for (int turn = 0; turn < 3; turn++) {
+			Game.Move move = player.play(draughts);
+			assertTrue("Legal move", draughts.possibleMoves().contains(move));
+			assertTrue("Pondering during the turn of the opponent", player.isPondering());
+			draughts.play(move);
+			List<Game.Move> replies = draughts.possibleMoves();
+			draughts.play(replies.get(random.nextInt(replies.size())));
+		}
+		
+		// Closing stops the background search, and the player can be used again
+		player.close();
+		assertFalse("Stopped", player.isPondering());
+		Game.Move move = player.play(draughts);
+		assertTrue("Legal move after close", draughts.possibleMoves().contains(move));
+		assertTrue("Pondering again", player.isPondering());
+		player.setPondering(false);
+		assertFalse("Stopped by the option", player.isPondering());
+		player.close();
+	}
+	
+	@Test
+	public void testSolver() {
+		// The only move captures the last black checker
+		EnglishDraughts draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(19), asList(), asList(15), asList());
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(draughts, new Random(5));
+		assertFalse("Root not solved yet", mcts.evaluateTreeOnce());
+		assertTrue("Root solved", mcts.evaluateTreeOnce());
+		int child = mcts.tree.firstChild(NodeStore.ROOT);
+		assertEquals("Winning move", NodeStore.PROVEN_WIN, mcts.tree.proven(child));
+		assertEquals("Lost for the previous player", NodeStore.PROVEN_LOSS, mcts.tree.proven(NodeStore.ROOT));
+		assertEquals("Best move", newMove(draughts, asList(19,10)).toString(), mcts.getBestMove().toString());
+		assertTrue("Nothing more to search", mcts.evaluateTreeOnce());
+		
+		// Black can only move into the capture of its last checker: the win is proven two plies ahead
+		draughts = new EnglishDraughts(8);
+		setBoard(draughts.board, asList(), asList(23), asList(11), asList());
+		draughts.play(newMove(draughts, asList(23,19)));
+		mcts = new MonteCarloTreeSearch(draughts, new Random(6));
+		long elapsed = mcts.searchWithTimeLimit(10000);
+		assertTrue("Early exit", elapsed < 10000);
+		assertEquals("Black loses", NodeStore.PROVEN_WIN, mcts.tree.proven(NodeStore.ROOT));
+	}
+	
+	@Test
+	public void testTranspositions() {
+		// Two move orders reaching the same position
+		EnglishDraughts a = new EnglishDraughts(8);
+		a.play(newMove(a, asList(21,17)));
+		a.play(newMove(a, asList(12,16)));
+		a.play(newMove(a, asList(22,18)));
+		EnglishDraughts b = new EnglishDraughts(8);
+		b.play(newMove(b, asList(22,18)));
+		b.play(newMove(b, asList(12,16)));
+		b.play(newMove(b, asList(21,17)));
+		assertEquals("Same position key", a.positionKey(), b.positionKey());
+		
+		TranspositionTable table = new TranspositionTable(16);
+		assertEquals("Not in the table", -1, table.find(a.positionKey()));
+		table.addStats(a.positionKey(), 100, 40.0);
+		table.addStats(b.positionKey(), 100, 60.0);
+		int entry = table.find(b.positionKey());
+		assertEquals("Shared visits", 200, table.n(entry));
+		assertEquals("Shared wins", 100.0, table.w(entry), 0.0);
+		
+		// Full table: the least visited position is replaced
+		for (long key = 2; key < 100; key++)
+			table.addStats(key, 1, 0.0);
+		assertEquals("Visited position kept", entry, table.find(a.positionKey()));
+		
+		// Every simulation of a search goes through the root position
+		MonteCarloTreeSearch mcts = new MonteCarloTreeSearch(a, new Random(7));
+		mcts.setTranspositions(1 << 12);
+		for (int i = 0; i < 50; i++)
+			mcts.evaluateTreeOnce();
+		assertEquals("Root node key", a.positionKey(), mcts.tree.key(NodeStore.ROOT));
+		assertEquals("Root position stats", mcts.tree.n(NodeStore.ROOT), 
+				mcts.transpositions.n(mcts.transpositions.find(a.positionKey())));
+		
+		// The table and the nodes with their keys share the memory budget of the tree
+		long budget = 1 << 20;
+		mcts = new MonteCarloTreeSearch(a, new Random(7), budget);
+		mcts.setTranspositions(1 << 20);
+		assertTrue("Table within half the budget", mcts.transpositions.memoryBytes() <= budget / 2);
+		assertTrue("Nodes and table within the budget", mcts.transpositions.memoryBytes()
+				+ (long) mcts.tree.maxNodes() * NodeStore.bytesPerNode(true, false, false) <= budget);
+		assertEquals("Root node key", a.positionKey(), mcts.tree.key(NodeStore.ROOT));
+	}
 }
@@ -0,0 +1,165 @@
+package fr.istic.ia.tp1;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The statistics of game positions, indexed by a position hash ({@link Game#positionKey()}), so that the
+ * paths of a MCTS tree reaching the same position through different move orders share them.
+ * <p>
+ * The table has a fixed size and uses open addressing: a position is looked for in a few consecutive entries,
+ * and when they are all taken, the least visited one is replaced. Statistics are updated atomically, so that
+ * several threads can search the same tree; an entry replaced while another thread updates it may get
+ * a few wrong simulations, which only blurs the estimates of rarely visited positions.
+ */
+final class TranspositionTable {
+
+    /**
+     * Memory used by an entry, in bytes
+     */
+    static final int BYTES_PER_ENTRY = 8 + 4 + 8;
+
+    /**
+     * The number of entries looked at for a position
+     */
+    private static final int PROBES = 8;
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    /**
+     * The keys of the positions (0 for an empty entry)
+     */
+    private final long[] keys;
+
+    /**
+     * The number of simulations run through the positions
+     */
+    private final int[] n;
+
+    /**
+     * The number of simulations won by {@link Game.PlayerId#ONE} from the positions
+     * (which do not depend on the path or on the player of the root of the tree)
+     */
+    private final double[] w;
+
+    private final int mask;
+
+    /**
+     * The capacity of the largest table fitting in a memory budget
+     *
+     * @param maxBytes The memory budget, in bytes
+     * @return The number of entries, a power of 2
+     */
+    static int capacityForBytes(long maxBytes) {
+        return Integer.highestOneBit((int) Math.max(Math.min(maxBytes / BYTES_PER_ENTRY, 1 << 30), PROBES));
+    }
+
+    /**
+     * Create an empty table
+     *
+     * @param capacity The number of entries, rounded up to a power of 2
+     */
+    TranspositionTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+        keys = new long[size];
+        n = new int[size];
+        w = new double[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Keys are never 0, which marks the empty entries
+     */
+    private static long nonZero(long key) {
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * Find the entry of a position
+     *
+     * @param key The hash of the position
+     * @return The index of the entry, or -1 if the position is not in the table
+     */
+    int find(long key) {
+        key = nonZero(key);
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int i = (start + probe) & mask;
+            long k = (long) LONGS.getAcquire(keys, i);
+            if (k == key)
+                return i;
+            if (k == 0)
+                return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the entry of a position, or create it, replacing the least visited entry if there is no room
+     *
+     * @param key The hash of the position
+     * @return The index of the entry
+     */
+    int findOrInsert(long key) {
+        key = nonZero(key);
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        int victim = start;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int i = (start + probe) & mask;
+            long k = (long) LONGS.getAcquire(keys, i);
+            if (k == key)
+                return i;
+            if (k == 0) {
+                if (LONGS.compareAndSet(keys, i, 0L, key))
+                    return i;
+                if ((long) LONGS.getAcquire(keys, i) == key)
+                    return i;
+            } else if (n[i] < n[victim]) {
+                victim = i;
+            }
+        }
+        n[victim] = 0;
+        w[victim] = 0.0;
+        LONGS.setRelease(keys, victim, key);
+        return victim;
+    }
+
+    /**
+     * @return The number of simulations run through the position of an entry
+     */
+    int n(int entry) {
+        return n[entry];
+    }
+
+    /**
+     * @return The number of simulations won by {@link Game.PlayerId#ONE} from the position of an entry
+     */
+    double w(int entry) {
+        return w[entry];
+    }
+
+    /**
+     * Atomically add results to the statistics of a position
+     *
+     * @param key The hash of the position
+     * @param n   The number of simulations to add
+     * @param w   The number of wins to add, for {@link Game.PlayerId#ONE}
+     */
+    void addStats(long key, int n, double w) {
+        int i = findOrInsert(key);
+        INTS.getAndAdd(this.n, i, n);
+        double previous;
+        do {
+            previous = (double) DOUBLES.getVolatile(this.w, i);
+        } while (!DOUBLES.weakCompareAndSet(this.w, i, previous, previous + w));
+    }
+
+    /**
+     * @return The memory used by the table, in bytes
+     */
+    long memoryBytes() {
+        return (long) keys.length * BYTES_PER_ENTRY;
+    }
+}